@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies;
+
+import java.net.InetAddress;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Determines the name of the current host once per JVM. The lookup is started
+ * in a background thread when this class is loaded and the first caller will
+ * wait at most <code>se.trillian.goodies.hostname.timeout</code> milliseconds
+ * (default 2000) for it to complete. If the lookup fails or hasn't completed
+ * yet <code>localhost</code> will be used. A lookup which times out isn't
+ * abandoned: later callers will get the real name as soon as the lookup has
+ * completed. The host name can be set explicitly using the 
+ * <code>se.trillian.goodies.hostname.full</code> system property in which 
+ * case no lookup will be made.
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+public final class HostIdentity {
+    /**
+     * System property which overrides the full host name.
+     */
+    public static final String HOST_NAME_PROPERTY = "se.trillian.goodies.hostname.full";
+
+    /**
+     * System property which sets the maximum number of milliseconds to wait
+     * for the host name lookup.
+     */
+    public static final String TIMEOUT_PROPERTY = "se.trillian.goodies.hostname.timeout";
+
+    /**
+     * The host name used when the name of the current host couldn't be 
+     * determined.
+     */
+    public static final String DEFAULT_HOST_NAME = "localhost";
+    
+    private static final long DEFAULT_TIMEOUT = 2000;
+
+    private static final FutureTask<String> lookup;
+    private static String fullHostName;
+    private static boolean timedOut = false;
+    private static boolean failed = false;
+    private static boolean defaultUsed = false;
+
+    static {
+        String name = System.getProperty(HOST_NAME_PROPERTY);
+        if (name != null && name.trim().length() > 0) {
+            fullHostName = name.trim();
+            lookup = null;
+        } else {
+            lookup = new FutureTask<String>(new Callable<String>() {
+                public String call() throws Exception {
+                    return InetAddress.getLocalHost().getHostName();
+                }
+            });
+            Thread t = new Thread(lookup, "HostIdentity lookup");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    private HostIdentity() {
+    }
+    
+    private static Logger log() {
+        // Not a static field since this class is used to pick the logging 
+        // config before the logging system has been configured.
+        return LoggerFactory.getLogger(HostIdentity.class);
+    }
+
+    /**
+     * Returns the full name of the current host, e.g.
+     * <code>server1.example.com</code>, or <code>localhost</code> if it
+     * couldn't be determined. Logs a warning when falling back to
+     * <code>localhost</code>.
+     */
+    public static synchronized String getFullHostName() {
+        String name = lookupFullHostName();
+        if (name == null) {
+            if (!defaultUsed) {
+                defaultUsed = true;
+                log().warn((failed ? "Could not determine" : "Timed out while determining")
+                        + " the name for the current host. Using '" + DEFAULT_HOST_NAME 
+                        + "' until it is known.");
+            }
+            return DEFAULT_HOST_NAME;
+        }
+        if (defaultUsed) {
+            defaultUsed = false;
+            log().warn("The name for the current host was determined to be '" 
+                    + name + "' after '" + DEFAULT_HOST_NAME + "' had been used.");
+        }
+        return name;
+    }
+    
+    /**
+     * Returns the full name of the current host or <code>null</code> if it 
+     * couldn't be determined or the lookup hasn't completed yet. Only the 
+     * first call waits for the lookup. Never logs.
+     */
+    public static synchronized String lookupFullHostName() {
+        if (fullHostName == null && !failed) {
+            try {
+                fullHostName = lookup.get(timedOut ? 0 : getTimeout(), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                timedOut = true;
+            } catch (ExecutionException e) {
+                failed = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return fullHostName;
+    }
+    
+    private static long getTimeout() {
+        try {
+            return Long.parseLong(System.getProperty(TIMEOUT_PROPERTY,
+                    String.valueOf(DEFAULT_TIMEOUT)));
+        } catch (NumberFormatException e) {
+            return DEFAULT_TIMEOUT;
+        }
+    }
+
+    /**
+     * Returns the name of the current host up to the first '.', e.g.
+     * <code>server1</code>.
+     */
+    public static String getHostName() {
+        return getShortHostName(getFullHostName());
+    }
+
+    /**
+     * Returns the specified host name up to the first '.'.
+     */
+    public static String getShortHostName(String fullHostName) {
+        int dotIndex = fullHostName.indexOf('.');
+        if (dotIndex != -1) {
+            return fullHostName.substring(0, dotIndex);
+        }
+        return fullHostName;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2004-2010, Trillian AB. All Rights Reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are prohibited without specific prior
+ * written permission from Trillian AB (http://www.trillian.se).
+ *
+ * This notice and attribution to Trillian AB may not be removed.
+ */
+package se.trillian.goodies.ehcache;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which caches are advertised to which peers. Caches are assigned to
+ * named groups and peer addresses declare which groups they are interested
+ * in. A cache is advertised to a peer unless the cache belongs to a group
+ * and the peer has declared interest only in other groups. Caches without a
+ * group and peers without declared groups are never filtered.
+ *
+ * @version $Id$
+ */
+final class CacheGroups {
+
+    /**
+     * Groups instance which advertises every cache to every peer.
+     */
+    static final CacheGroups NONE = new CacheGroups(
+            Collections.<String, String>emptyMap(),
+            Collections.<InetAddress, Set<String>>emptyMap());
+
+    private final Map<String, String> groupByCacheName;
+    private final Map<InetAddress, Set<String>> groupsByPeer;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param groupByCacheName maps cache names to the group they belong to.
+     * @param groupsByPeer maps peer addresses to the groups they are
+     *        interested in.
+     */
+    CacheGroups(Map<String, String> groupByCacheName,
+            Map<InetAddress, Set<String>> groupsByPeer) {
+
+        this.groupByCacheName = new HashMap<String, String>(groupByCacheName);
+        this.groupsByPeer = new HashMap<InetAddress, Set<String>>(groupsByPeer);
+    }
+
+    /**
+     * @return the groups the specified peer is interested in or
+     *         <code>null</code> if the peer should be sent all caches.
+     */
+    Set<String> getGroups(InetAddress peerAddress) {
+        return groupsByPeer.get(peerAddress);
+    }
+
+    /**
+     * @return <code>true</code> if the cache with the specified name should
+     *         be advertised to a peer interested in the specified groups.
+     */
+    boolean isAdvertised(String cacheName, Set<String> peerGroups) {
+        if (peerGroups == null) {
+            return true;
+        }
+        String group = groupByCacheName.get(cacheName);
+        return group == null || peerGroups.contains(group);
+    }
+
+    /**
+     * @return <code>true</code> if the cache with the specified name should
+     *         be advertised to the peer with the specified address.
+     */
+    boolean isAdvertised(String cacheName, InetAddress peerAddress) {
+        return isAdvertised(cacheName, getGroups(peerAddress));
+    }
+}
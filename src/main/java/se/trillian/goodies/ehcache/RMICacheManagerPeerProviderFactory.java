@@ -13,7 +13,9 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TreeSet;
@@ -28,6 +30,14 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Builds a factory based on RMI using unicast discovery. 
+ * <p>
+ * The advertised caches can be restricted per peer using the 
+ * <code>cacheGroups</code> and <code>peerGroups</code> properties, e.g.
+ * <code>cacheGroups=sessions=cache1|cache2;reference=cache3</code> and
+ * <code>peerGroups=10.0.0.1=sessions|reference;10.0.0.2=reference</code>.
+ * A cache in a group is only advertised to peers interested in that group.
+ * Caches not in any group and peers not listed in <code>peerGroups</code> are
+ * not filtered.
  */
 public class RMICacheManagerPeerProviderFactory extends net.sf.ehcache.distribution.RMICacheManagerPeerProviderFactory {
 
@@ -39,6 +49,8 @@ public class RMICacheManagerPeerProviderFactory extends net.sf.ehcache.distribut
     private static final String HOST_NAME = "hostName";
     private static final String PEER_ADDRESSES = "peerAddresses";
     private static final String PEER_PORTS = "peerPorts";
+    private static final String CACHE_GROUPS = "cacheGroups";
+    private static final String PEER_GROUPS = "peerGroups";
 
     public CacheManagerPeerProvider createCachePeerProvider(CacheManager cacheManager, Properties properties)
             throws CacheException {
@@ -69,8 +81,11 @@ public class RMICacheManagerPeerProviderFactory extends net.sf.ehcache.distribut
 
         List<InetAddress> peerAddresses = parseAddresses(PropertyUtil.extractAndLogProperty(PEER_ADDRESSES, properties));
         Set<Integer> peerPorts = parsePorts(PropertyUtil.extractAndLogProperty(PEER_PORTS, properties));
+        CacheGroups cacheGroups = new CacheGroups(
+                parseCacheGroups(PropertyUtil.extractAndLogProperty(CACHE_GROUPS, properties)),
+                parsePeerGroups(PropertyUtil.extractAndLogProperty(PEER_GROUPS, properties)));
         
-        return new UnicastRMICacheManagerPeerProvider(cacheManager, peerAddresses, peerPorts, hostAddress);
+        return new UnicastRMICacheManagerPeerProvider(cacheManager, peerAddresses, peerPorts, hostAddress, cacheGroups);
     }
 
     protected static List<InetAddress> parseAddresses(String p) throws UnknownHostException {
@@ -110,4 +125,65 @@ public class RMICacheManagerPeerProviderFactory extends net.sf.ehcache.distribut
         }
         return ports;
     }
+
+    /**
+     * Parses a <code>group=cache|cache;group=cache</code> string into a map
+     * from cache name to group name.
+     */
+    protected static Map<String, String> parseCacheGroups(String p) {
+        Map<String, String> groups = new HashMap<String, String>();
+        if (p == null || p.trim().length() == 0) {
+            return groups;
+        }
+        for (String s : p.split(";")) {
+            String[] t = parseGroupEntry(s);
+            for (String cacheName : t[1].split("\\|")) {
+                cacheName = cacheName.trim();
+                if (cacheName.length() > 0) {
+                    String old = groups.put(cacheName, t[0]);
+                    if (old != null && !old.equals(t[0])) {
+                        throw new IllegalArgumentException("Cache '" + cacheName 
+                                + "' specified in more than one group ('" + old + "', '" + t[0] + "')");
+                    }
+                }
+            }
+        }
+        return groups;
+    }
+    
+    /**
+     * Parses a <code>address=group|group;address=group</code> string into a
+     * map from peer address to the names of the groups the peer is 
+     * interested in.
+     */
+    protected static Map<InetAddress, Set<String>> parsePeerGroups(String p) throws UnknownHostException {
+        Map<InetAddress, Set<String>> groups = new HashMap<InetAddress, Set<String>>();
+        if (p == null || p.trim().length() == 0) {
+            return groups;
+        }
+        for (String s : p.split(";")) {
+            String[] t = parseGroupEntry(s);
+            InetAddress address = InetAddress.getByName(t[0]);
+            Set<String> names = groups.get(address);
+            if (names == null) {
+                names = new TreeSet<String>();
+                groups.put(address, names);
+            }
+            for (String group : t[1].split("\\|")) {
+                group = group.trim();
+                if (group.length() > 0) {
+                    names.add(group);
+                }
+            }
+        }
+        return groups;
+    }
+    
+    private static String[] parseGroupEntry(String s) {
+        String[] t = s.split("=");
+        if (t.length != 2 || t[0].trim().length() == 0) {
+            throw new IllegalArgumentException("Illegal group entry '" + s + "'. Expected 'name=value|value'");
+        }
+        return new String[] {t[0].trim(), t[1].trim()};
+    }
 }
@@ -147,6 +147,10 @@ public class UnicastKeepaliveHeartbeatReceiver {
                                 return;
                             }
                             String rmiUrl = stringTokenizer.nextToken();
+                            if (!isLocalCache(rmiUrl)) {
+                                // No point in looking up peers for caches we don't have
+                                continue;
+                            }
                             registerNotification(rmiUrl);
                             if (!peerProvider.getPeerUrls().containsKey(rmiUrl)) {
                                 if (LOG.isDebugEnabled()) {
@@ -190,6 +194,11 @@ public class UnicastKeepaliveHeartbeatReceiver {
             return baseUrlMatch != -1;
         }
 
+        private boolean isLocalCache(String rmiUrl) {
+            String cacheName = UnicastRMICacheManagerPeerProvider.extractCacheName(rmiUrl);
+            return peerProvider.getCacheManager().cacheExists(cacheName);
+        }
+
         private void registerNotification(String rmiUrl) {
             peerProvider.registerPeer(rmiUrl);
         }
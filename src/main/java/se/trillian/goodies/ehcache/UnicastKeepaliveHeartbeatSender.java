@@ -14,12 +14,16 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
+import java.rmi.RemoteException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.distribution.CachePeer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,6 +45,7 @@ public class UnicastKeepaliveHeartbeatSender {
     private CacheManager cacheManager;
     private List<InetAddress> peerAddresses; 
     private Set<Integer> peerPorts;
+    private CacheGroups cacheGroups;
     private DatagramChannel channel;
     private SenderThread serverThread;
     private boolean stopped;
@@ -49,10 +54,19 @@ public class UnicastKeepaliveHeartbeatSender {
             DatagramChannel channel,
             List<InetAddress> peerAddresses, Set<Integer> peerPorts) {
         
+        this(cacheManager, channel, peerAddresses, peerPorts, CacheGroups.NONE);
+    }
+
+    UnicastKeepaliveHeartbeatSender(CacheManager cacheManager,
+            DatagramChannel channel,
+            List<InetAddress> peerAddresses, Set<Integer> peerPorts,
+            CacheGroups cacheGroups) {
+        
         this.cacheManager = cacheManager;
         this.channel = channel;
         this.peerAddresses = peerAddresses;
         this.peerPorts = peerPorts;
+        this.cacheGroups = cacheGroups;
     }
 
     public final void init() {
@@ -79,7 +93,12 @@ public class UnicastKeepaliveHeartbeatSender {
     
     private final class SenderThread extends Thread {
 
-        private List<byte[]> compressedUrlListList = new ArrayList<byte[]>();
+        /**
+         * Compressed payloads keyed on the groups of the peers they are sent 
+         * to. The <code>null</code> key holds the payload containing all 
+         * caches.
+         */
+        private Map<Set<String>, List<byte[]>> compressedUrlListLists = new HashMap<Set<String>, List<byte[]>>();
         private int cachePeersHash;
 
         public SenderThread() {
@@ -94,9 +113,10 @@ public class UnicastKeepaliveHeartbeatSender {
                 try {
                     
                     while (!stopped) {
-                        List<byte[]> buffers = createCachePeersPayload();
-                        for (byte[] buffer : buffers) {
-                            for (InetAddress peerAddress : peerAddresses) {
+                        refreshCachePeers();
+                        for (InetAddress peerAddress : peerAddresses) {
+                            List<byte[]> buffers = createCachePeersPayload(cacheGroups.getGroups(peerAddress));
+                            for (byte[] buffer : buffers) {
                                 for (int peerPort : peerPorts) {
                                     InetSocketAddress addr = new InetSocketAddress(peerAddress, peerPort);
                                     if (!localAddress.equals(addr)) {
@@ -135,23 +155,35 @@ public class UnicastKeepaliveHeartbeatSender {
         }
 
         /**
-         * Creates a gzipped payload.
-         * <p/>
-         * The last gzipped payload is retained and only recalculated if the list of cache peers
-         * has changed.
-         *
-         * @return a gzipped byte[]
+         * Drops the retained payloads if the list of cache peers has changed.
          */
-        private List<byte[]> createCachePeersPayload() {
-            List localCachePeers = cacheManager.getCachePeerListener("RMI").getBoundCachePeers();
+        private void refreshCachePeers() {
+            List<?> localCachePeers = cacheManager.getCachePeerListener("RMI").getBoundCachePeers();
             int newCachePeersHash = localCachePeers.hashCode();
             if (cachePeersHash != newCachePeersHash) {
                 cachePeersHash = newCachePeersHash;
-
+                compressedUrlListLists.clear();
+            }
+        }
+        
+        /**
+         * Creates a gzipped payload containing the cache peers advertised to
+         * peers interested in the specified groups.
+         * <p/>
+         * The last gzipped payload for each set of groups is retained and only 
+         * recalculated if the list of cache peers has changed.
+         *
+         * @param groups the groups or <code>null</code> for all caches.
+         * @return a gzipped byte[]
+         */
+        private List<byte[]> createCachePeersPayload(Set<String> groups) {
+            List<byte[]> compressedUrlListList = compressedUrlListLists.get(groups);
+            if (compressedUrlListList == null) {
+                List<?> localCachePeers = getAdvertisedCachePeers(groups);
                 compressedUrlListList = new ArrayList<byte[]>();
                 while (localCachePeers.size() > 0) {
                     int endIndex = Math.min(localCachePeers.size(), MAXIMUM_PEERS_PER_SEND);
-                    List localCachePeersSubList = localCachePeers.subList(0, endIndex);
+                    List<?> localCachePeersSubList = localCachePeers.subList(0, endIndex);
                     localCachePeers = localCachePeers.subList(endIndex, localCachePeers.size());
 
                     byte[] uncompressedUrlList = PayloadUtil.assembleUrlList(localCachePeersSubList);
@@ -163,9 +195,29 @@ public class UnicastKeepaliveHeartbeatSender {
                     }
                     compressedUrlListList.add(compressedUrlList);
                 }
+                compressedUrlListLists.put(groups, compressedUrlListList);
             }
             return compressedUrlListList;
         }
+        
+        private List<?> getAdvertisedCachePeers(Set<String> groups) {
+            List<?> localCachePeers = cacheManager.getCachePeerListener("RMI").getBoundCachePeers();
+            if (groups == null) {
+                return localCachePeers;
+            }
+            List<CachePeer> advertisedCachePeers = new ArrayList<CachePeer>();
+            for (Object o : localCachePeers) {
+                CachePeer cachePeer = (CachePeer) o;
+                try {
+                    if (cacheGroups.isAdvertised(cachePeer.getName(), groups)) {
+                        advertisedCachePeers.add(cachePeer);
+                    }
+                } catch (RemoteException e) {
+                    LOG.error("This should never be thrown as it is called locally", e);
+                }
+            }
+            return advertisedCachePeers;
+        }
 
     }
 }
@@ -62,6 +62,20 @@ public final class UnicastRMICacheManagerPeerProvider extends RMICacheManagerPee
      */
     public UnicastRMICacheManagerPeerProvider(CacheManager cacheManager, List<InetAddress> peerAddresses,
             Set<Integer> peerPorts, InetAddress hostAddress) {
+        this(cacheManager, peerAddresses, peerPorts, hostAddress, CacheGroups.NONE);
+    }
+    
+    /**
+     * Creates and starts a single cast peer provider which only advertises
+     * caches to the peers interested in them.
+     *
+     * @param peerAddresses list of addresses which peers may be listening on.
+     * @param peerPorts    list of ports which peers may be listening on.
+     * @param hostAddress the address of the interface to use for sending and receiving packets. May be null.
+     * @param cacheGroups decides which caches are advertised to which peers.
+     */
+    UnicastRMICacheManagerPeerProvider(CacheManager cacheManager, List<InetAddress> peerAddresses,
+            Set<Integer> peerPorts, InetAddress hostAddress, CacheGroups cacheGroups) {
         super(cacheManager);
 
         try {
@@ -85,7 +99,7 @@ public final class UnicastRMICacheManagerPeerProvider extends RMICacheManagerPee
         LOG.debug("Bound to " + channel.socket().getLocalSocketAddress());
         
         heartBeatReceiver = new UnicastKeepaliveHeartbeatReceiver(this, channel);
-        heartBeatSender = new UnicastKeepaliveHeartbeatSender(cacheManager, channel, peerAddresses, peerPorts);
+        heartBeatSender = new UnicastKeepaliveHeartbeatSender(cacheManager, channel, peerAddresses, peerPorts, cacheGroups);
     }
 
     Map getPeerUrls() {
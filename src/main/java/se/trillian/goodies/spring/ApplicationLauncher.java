@@ -17,14 +17,25 @@ package se.trillian.goodies.spring;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.ObjectName;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.beans.factory.parsing.EmptyReaderEventListener;
+import org.springframework.beans.factory.parsing.ImportDefinition;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.beans.factory.xml.XmlBeanDefinitionReader;
 import org.springframework.context.support.AbstractXmlApplicationContext;
 import org.springframework.context.support.FileSystemXmlApplicationContext;
+import org.springframework.core.io.Resource;
 import org.tanukisoftware.wrapper.WrapperListener;
 import org.tanukisoftware.wrapper.WrapperManager;
 
@@ -34,6 +45,8 @@ import ch.qos.logback.classic.joran.JoranConfigurator;
 import ch.qos.logback.core.joran.spi.JoranException;
 import ch.qos.logback.core.util.StatusPrinter;
 
+import se.trillian.goodies.HostIdentity;
+
 /**
  * Launches a standalone (not running in a web container) application by loading
  * a set of Spring configuration files into a single context. All non-lazy 
@@ -65,33 +78,74 @@ import ch.qos.logback.core.util.StatusPrinter;
  * If no Spring context files have been specified this class will load all 
  * Spring files matching <code>classpath*:/spring/*.xml</code>.
  * </p> 
+ * <p>
+ * Once all singletons have been created {@link ParallelInitializingBean}s 
+ * will be initialized using {@link ParallelBeanInitializer}. The number of 
+ * threads used is set using the 
+ * <code>se.trillian.goodies.launcher.parallelInitThreads</code> system
+ * property and defaults to the number of available processors. The time it 
+ * took to create each bean will be measured and the slowest beans will be 
+ * logged. If the <code>se.trillian.goodies.launcher.timingReport</code> 
+ * system property has been set the timings of all beans will be written to 
+ * the file it specifies.
+ * </p>
+ * <p>
+ * If the <code>se.trillian.goodies.launcher.snapshot</code> system property
+ * has been set the bean definitions will be saved to the file it specifies
+ * using {@link BeanDefinitionSnapshot} the first time the application is 
+ * started. As long as the Spring files haven't changed the definitions will 
+ * be loaded from that file on subsequent starts instead of parsing the XML.
+ * </p>
+ * <p>
+ * {@link #stop(int)} shuts down the context using {@link ShutdownCoordinator}
+ * which stops accepting new work and drains executors, {@link Drainable}s and
+ * ehcache replication queues before the context is closed. The 
+ * <code>se.trillian.goodies.launcher.shutdownTimeout</code> system property
+ * sets the maximum number of milliseconds the shutdown may take and defaults
+ * to 30000.
+ * </p>
+ * <p>
+ * The startup phase, readiness and runtime statistics are reported by a 
+ * {@link LauncherStatus} which is registered as an MBean named 
+ * <code>se.trillian.goodies:type=ApplicationLauncher</code>. If the 
+ * <code>se.trillian.goodies.launcher.statusPort</code> system property has
+ * been set the status will also be available over HTTP on that port using
+ * {@link LauncherStatusServer}. Beans implementing {@link ReadinessCheck} 
+ * can prevent the application from being reported as ready.
+ * </p>
+ * <p>
+ * After the context has been refreshed and before the application is 
+ * reported as ready all {@link WarmUpBean}s are warmed up using 
+ * {@link WarmUpRunner}. The <code>se.trillian.goodies.launcher.warmUpBudget</code>
+ * system property sets the maximum number of milliseconds to spend and 
+ * defaults to 30000.
+ * </p>
  *
  * @author Niklas Therning
  * @version $Id$
  */
 public class ApplicationLauncher {
     private static final Logger log = LoggerFactory.getLogger(ApplicationLauncher.class);
-    private static final String hostName;
-    private static final String fullHostName;
     
-    static {
-        String name = "localhost";
-        try {
-            name = InetAddress.getLocalHost().getHostName();
-        } catch (UnknownHostException uhe) {
-            log.warn("Could not determine the name for the current host. Using '" 
-                    + name + "'.");
-        }
-        fullHostName = name;
-        int dotIndex = fullHostName.indexOf('.');
-        if (dotIndex != -1) {
-            hostName = fullHostName.substring(0, dotIndex);
-        } else {
-            hostName = fullHostName;
-        }
-    }
+    public static final String PARALLEL_INIT_THREADS_PROPERTY = "se.trillian.goodies.launcher.parallelInitThreads";
+    public static final String TIMING_REPORT_PROPERTY = "se.trillian.goodies.launcher.timingReport";
+    public static final String SNAPSHOT_PROPERTY = "se.trillian.goodies.launcher.snapshot";
+    public static final String SHUTDOWN_TIMEOUT_PROPERTY = "se.trillian.goodies.launcher.shutdownTimeout";
+    public static final String WARM_UP_BUDGET_PROPERTY = "se.trillian.goodies.launcher.warmUpBudget";
+    public static final String STATUS_PORT_PROPERTY = "se.trillian.goodies.launcher.statusPort";
+    public static final String STATUS_MBEAN_NAME = "se.trillian.goodies:type=ApplicationLauncher";
+    private static final int LOGGED_TIMINGS = 10;
     
     private AbstractXmlApplicationContext context = null;
+    private int parallelInitThreads = Integer.getInteger(PARALLEL_INIT_THREADS_PROPERTY, 
+            Runtime.getRuntime().availableProcessors());
+    private String timingReport = System.getProperty(TIMING_REPORT_PROPERTY);
+    private String snapshot = System.getProperty(SNAPSHOT_PROPERTY);
+    private long shutdownTimeout = Long.getLong(SHUTDOWN_TIMEOUT_PROPERTY, 30000);
+    private long warmUpBudget = Long.getLong(WARM_UP_BUDGET_PROPERTY, 30000);
+    private Integer statusPort = Integer.getInteger(STATUS_PORT_PROPERTY);
+    private final LauncherStatus status = new LauncherStatus();
+    private LauncherStatusServer statusServer = null;
     
     private static void printUsage(String msg) {
         if (msg != null) {
@@ -141,8 +195,11 @@ public class ApplicationLauncher {
             return new Integer(1);
         }
         
+        String fullHostName = HostIdentity.getFullHostName();
+        String hostName = HostIdentity.getShortHostName(fullHostName);
+        
         if (logFile == null) {
-            logFile = getDefaultLogbackFile();
+            logFile = getDefaultLogbackFile(hostName);
         }
         
         try {
@@ -166,8 +223,11 @@ public class ApplicationLauncher {
             }
         } catch (Throwable t) {
             log.error("Failed to initialize logback logging system: " + t.getMessage(), t);
+            status.setPhase(LauncherStatus.FAILED);
             return new Integer(2);
         }
+        
+        startStatusEndpoints();
             
         try {
             /*
@@ -177,16 +237,116 @@ public class ApplicationLauncher {
                 springFiles.add("classpath*:/spring/*.xml");
             }
             log.info("Loading spring files: " + springFiles);
-            context = new FileSystemXmlApplicationContext(springFiles.toArray(new String[0]), false);
+            long start = System.currentTimeMillis();
+            StartupTimingBeanPostProcessor timing = new StartupTimingBeanPostProcessor();
+            context = new LauncherApplicationContext(springFiles.toArray(new String[0]), 
+                    timing, parallelInitThreads, snapshot != null ? new File(snapshot) : null);
+            status.setPhase(LauncherStatus.REFRESHING);
             context.refresh();
+            timing.stop();
+            log.info("Spring context refreshed in " + (System.currentTimeMillis() - start) + " ms");
+            reportTimings(timing);
+            status.setContext(context);
+            status.setPhase(LauncherStatus.WARMING_UP);
+            warmUp();
+            status.setPhase(LauncherStatus.RUNNING);
         } catch (Throwable t) {
             log.error("Unable to load Spring configuration files", t);
+            status.setPhase(LauncherStatus.FAILED);
             return new Integer(3);
         }
         
         return null;
     }
     
+    public void setParallelInitThreads(int parallelInitThreads) {
+        this.parallelInitThreads = parallelInitThreads;
+    }
+    
+    public void setTimingReport(String timingReport) {
+        this.timingReport = timingReport;
+    }
+    
+    public void setSnapshot(String snapshot) {
+        this.snapshot = snapshot;
+    }
+    
+    public void setWarmUpBudget(long warmUpBudget) {
+        this.warmUpBudget = warmUpBudget;
+    }
+    
+    private void warmUp() {
+        int count = context.getBeanNamesForType(WarmUpBean.class, false, false).length;
+        if (count == 0) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        WarmUpRunner runner = new WarmUpRunner(context, parallelInitThreads, warmUpBudget);
+        Map<String, Long> timings = runner.warmUp();
+        long time = System.currentTimeMillis() - start;
+        if (timings.size() == count) {
+            log.info("Warmed up " + count + " beans in " + time + " ms");
+        } else {
+            int failed = runner.getFailed().size();
+            int unfinished = count - timings.size() - failed;
+            log.warn("Warmed up " + timings.size() + " of " + count + " beans in " + time 
+                    + " ms. " + failed + " failed and " + unfinished 
+                    + " did not finish within the budget of " + warmUpBudget + " ms");
+        }
+    }
+    
+    public void setStatusPort(Integer statusPort) {
+        this.statusPort = statusPort;
+    }
+    
+    public LauncherStatus getStatus() {
+        return status;
+    }
+    
+    private void startStatusEndpoints() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(status, 
+                    new ObjectName(STATUS_MBEAN_NAME));
+        } catch (Exception e) {
+            log.warn("Failed to register status MBean '" + STATUS_MBEAN_NAME + "': " + e.getMessage());
+        }
+        if (statusPort != null) {
+            try {
+                statusServer = new LauncherStatusServer(status, statusPort.intValue());
+            } catch (IOException e) {
+                log.warn("Failed to start status server on port " + statusPort + ": " + e.getMessage());
+            }
+        }
+    }
+    
+    private void stopStatusEndpoints() {
+        if (statusServer != null) {
+            statusServer.close();
+            statusServer = null;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(STATUS_MBEAN_NAME));
+        } catch (Exception e) {
+        }
+    }
+    
+    private void reportTimings(StartupTimingBeanPostProcessor timing) {
+        List<StartupTimingBeanPostProcessor.Timing> timings = timing.getTimings();
+        StringBuilder sb = new StringBuilder("Slowest beans (self-ms total-ms bean):");
+        for (int i = 0; i < timings.size() && i < LOGGED_TIMINGS; i++) {
+            sb.append("\n    ").append(timings.get(i));
+        }
+        log.info(sb.toString());
+        if (timingReport != null) {
+            try {
+                timing.writeReport(new File(timingReport));
+                log.info("Wrote bean timing report to '" + timingReport + "'");
+            } catch (IOException e) {
+                log.warn("Failed to write bean timing report to '" + timingReport + "': " + e.getMessage());
+            }
+        }
+    }
+    
     public AbstractXmlApplicationContext getContext() {
         return context;
     }
@@ -199,7 +359,7 @@ public class ApplicationLauncher {
         throw new FileNotFoundException();
     }
     
-    private String getDefaultLogbackFile() {
+    private String getDefaultLogbackFile(String hostName) {
         String prefix = hostName;
         String suffix = "";
         while (prefix.length() > 0) {
@@ -222,18 +382,129 @@ public class ApplicationLauncher {
         return null;
     }
     
+    public void setShutdownTimeout(long shutdownTimeout) {
+        this.shutdownTimeout = shutdownTimeout;
+    }
+    
     public int stop(int exitCode) {
         // Shutdown logback before closing the Spring context to 
         // avoid noisy ERROR logging during shutdown
-        LoggerContext lc = (LoggerContext) LoggerFactory.getILoggerFactory();
-        lc.reset();
+        Runnable loggingFlusher = new Runnable() {
+            public void run() {
+                LoggerContext lc = (LoggerContext) LoggerFactory.getILoggerFactory();
+                lc.reset();
+            }
+        };
         
+        status.setPhase(LauncherStatus.STOPPING);
         if (context != null) {
-            context.close();
+            new ShutdownCoordinator(context, shutdownTimeout, loggingFlusher).shutdown();
+        } else {
+            loggingFlusher.run();
         }
+        status.setPhase(LauncherStatus.STOPPED);
+        stopStatusEndpoints();
         
         return exitCode;
     }
+    
+    /**
+     * Measures the time it takes to create each bean, initializes 
+     * {@link ParallelInitializingBean}s once all singletons have been created
+     * and loads the bean definitions from a {@link BeanDefinitionSnapshot} 
+     * when possible.
+     */
+    private static class LauncherApplicationContext extends FileSystemXmlApplicationContext {
+        private final StartupTimingBeanPostProcessor timing;
+        private final int parallelInitThreads;
+        private final File snapshotFile;
+        private final List<Resource> importedResources = new ArrayList<Resource>();
+        private boolean wildcardImports = false;
+        
+        public LauncherApplicationContext(String[] configLocations, 
+                StartupTimingBeanPostProcessor timing, int parallelInitThreads,
+                File snapshotFile) {
+            
+            super(configLocations, false);
+            this.timing = timing;
+            this.parallelInitThreads = parallelInitThreads;
+            this.snapshotFile = snapshotFile;
+        }
+        
+        @Override
+        protected void initBeanDefinitionReader(XmlBeanDefinitionReader reader) {
+            super.initBeanDefinitionReader(reader);
+            // Record the imported files so that they are part of the snapshot
+            reader.setEventListener(new EmptyReaderEventListener() {
+                @Override
+                public void importProcessed(ImportDefinition importDefinition) {
+                    String location = importDefinition.getImportedResource();
+                    Resource[] resources = importDefinition.getActualResources();
+                    if (resources == null || location.indexOf('*') != -1 || location.indexOf('?') != -1) {
+                        wildcardImports = true;
+                    } else {
+                        importedResources.addAll(Arrays.asList(resources));
+                    }
+                }
+            });
+        }
+        
+        @Override
+        protected void loadBeanDefinitions(DefaultListableBeanFactory beanFactory) throws IOException {
+            if (snapshotFile == null) {
+                super.loadBeanDefinitions(beanFactory);
+                return;
+            }
+            
+            importedResources.clear();
+            wildcardImports = false;
+            List<Resource> resources = new ArrayList<Resource>();
+            for (String location : getConfigLocations()) {
+                resources.addAll(Arrays.asList(getResources(location)));
+            }
+            String fingerprint = BeanDefinitionSnapshot.fingerprint(resources.toArray(new Resource[resources.size()]));
+            BeanDefinitionSnapshot snapshot = new BeanDefinitionSnapshot(snapshotFile);
+            try {
+                if (snapshot.load(fingerprint, beanFactory)) {
+                    log.info("Loaded bean definitions from snapshot '" + snapshotFile + "'");
+                    return;
+                }
+            } catch (IOException e) {
+                log.warn("Failed to load bean definitions snapshot '" + snapshotFile + "': " + e.getMessage());
+            }
+            
+            super.loadBeanDefinitions(beanFactory);
+            if (wildcardImports) {
+                log.info("Not saving bean definitions snapshot since the config files use wildcard imports");
+                return;
+            }
+            try {
+                Resource[] imports = importedResources.toArray(new Resource[importedResources.size()]);
+                if (snapshot.save(fingerprint, imports, beanFactory)) {
+                    log.info("Saved bean definitions to snapshot '" + snapshotFile + "'");
+                }
+            } catch (IOException e) {
+                log.warn("Failed to save bean definitions snapshot '" + snapshotFile + "': " + e.getMessage());
+            }
+        }
+        
+        @Override
+        protected void postProcessBeanFactory(ConfigurableListableBeanFactory beanFactory) {
+            super.postProcessBeanFactory(beanFactory);
+            beanFactory.addBeanPostProcessor(timing);
+        }
+        
+        @Override
+        protected void finishBeanFactoryInitialization(ConfigurableListableBeanFactory beanFactory) {
+            super.finishBeanFactoryInitialization(beanFactory);
+            long start = System.currentTimeMillis();
+            Map<String, Long> timings = new ParallelBeanInitializer(beanFactory, parallelInitThreads).initialize();
+            if (!timings.isEmpty()) {
+                log.info("Initialized " + timings.size() + " beans using " + parallelInitThreads 
+                        + " threads in " + (System.currentTimeMillis() - start) + " ms");
+            }
+        }
+    }
 }
 
 class WrapperFacade {
@@ -0,0 +1,606 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies.spring;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.MutablePropertyValues;
+import org.springframework.beans.PropertyValue;
+import org.springframework.beans.factory.annotation.AnnotatedBeanDefinition;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.config.BeanDefinitionHolder;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.beans.factory.config.ConstructorArgumentValues;
+import org.springframework.beans.factory.config.RuntimeBeanNameReference;
+import org.springframework.beans.factory.config.RuntimeBeanReference;
+import org.springframework.beans.factory.config.TypedStringValue;
+import org.springframework.beans.factory.support.AbstractBeanDefinition;
+import org.springframework.beans.factory.support.BeanDefinitionRegistry;
+import org.springframework.beans.factory.support.GenericBeanDefinition;
+import org.springframework.beans.factory.support.ManagedList;
+import org.springframework.beans.factory.support.ManagedMap;
+import org.springframework.beans.factory.support.ManagedProperties;
+import org.springframework.beans.factory.support.ManagedSet;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.UrlResource;
+
+/**
+ * Saves the bean definitions of a bean factory to a compact binary file and
+ * registers them again without parsing any XML. The file contains a
+ * fingerprint of the configuration files the definitions were read from as
+ * well as the locations and checksums of the files they imported and will 
+ * only be used as long as none of those files have changed.
+ * <p>
+ * Only the metadata produced by the standard <code>beans</code> and
+ * <code>util</code> XML namespaces is supported. Bean definitions using
+ * qualifiers, method overrides, attributes or other value types can't be
+ * saved. Neither can bean definitions found by classpath scanning, e.g.
+ * using <code>context:component-scan</code>, since adding or removing 
+ * annotated classes doesn't change the fingerprint. Placeholders are not resolved in the snapshot, they will be
+ * resolved when the context is refreshed as usual.
+ * </p>
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+public class BeanDefinitionSnapshot {
+    private static final Logger log = LoggerFactory.getLogger(BeanDefinitionSnapshot.class);
+
+    private static final int MAGIC = 0x54424453;
+    private static final int VERSION = 2;
+
+    private static final int NULL = 0;
+    private static final int STRING = 1;
+    private static final int TYPED_STRING = 2;
+    private static final int BEAN_REFERENCE = 3;
+    private static final int BEAN_NAME_REFERENCE = 4;
+    private static final int BEAN_DEFINITION_HOLDER = 5;
+    private static final int BEAN_DEFINITION = 6;
+    private static final int LIST = 7;
+    private static final int SET = 8;
+    private static final int MAP = 9;
+    private static final int PROPERTIES = 10;
+
+    private final File file;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param file the snapshot file.
+     */
+    public BeanDefinitionSnapshot(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Calculates a fingerprint of the contents of the specified resources.
+     */
+    public static String fingerprint(Resource[] resources) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Resource resource : resources) {
+            sb.append(resource.getDescription()).append(':').append(checksum(resource)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static long checksum(Resource resource) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[8192];
+        InputStream in = resource.getInputStream();
+        try {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Registers the bean definitions in the snapshot file with the specified
+     * registry if the file exists, has been saved with the same fingerprint
+     * and none of the imported resources saved with it have changed.
+     *
+     * @return <code>true</code> if the bean definitions were registered,
+     *         <code>false</code> if the file is missing or out of date.
+     */
+    public boolean load(String fingerprint, BeanDefinitionRegistry registry) throws IOException {
+        if (!file.isFile()) {
+            return false;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(file))));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || !fingerprint.equals(readString(in))) {
+                return false;
+            }
+            int importCount = in.readInt();
+            for (int i = 0; i < importCount; i++) {
+                String url = readString(in);
+                long checksum = in.readLong();
+                if (!isUnchanged(url, checksum)) {
+                    log.info("Bean definitions snapshot is out of date. '" + url + "' has changed.");
+                    return false;
+                }
+            }
+            int count = in.readInt();
+            String[] names = new String[count];
+            BeanDefinition[] definitions = new BeanDefinition[count];
+            for (int i = 0; i < count; i++) {
+                names[i] = readString(in);
+                definitions[i] = readBeanDefinition(in);
+            }
+            int aliasCount = in.readInt();
+            String[][] aliases = new String[aliasCount][];
+            for (int i = 0; i < aliasCount; i++) {
+                aliases[i] = new String[] {readString(in), readString(in)};
+            }
+            for (int i = 0; i < count; i++) {
+                registry.registerBeanDefinition(names[i], definitions[i]);
+            }
+            for (String[] alias : aliases) {
+                registry.registerAlias(alias[0], alias[1]);
+            }
+            return true;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean isUnchanged(String url, long checksum) {
+        try {
+            return checksum(new UrlResource(url)) == checksum;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Saves the bean definitions in the specified bean factory.
+     *
+     * @return <code>true</code> if the snapshot was saved, <code>false</code>
+     *         if any of the bean definitions isn't supported.
+     */
+    public boolean save(String fingerprint, ConfigurableListableBeanFactory beanFactory) throws IOException {
+        return save(fingerprint, new Resource[0], beanFactory);
+    }
+
+    /**
+     * Saves the bean definitions in the specified bean factory together with
+     * the locations and checksums of the specified resources imported by
+     * the configuration files.
+     *
+     * @return <code>true</code> if the snapshot was saved, <code>false</code>
+     *         if any of the bean definitions isn't supported.
+     */
+    public boolean save(String fingerprint, Resource[] importedResources, 
+            ConfigurableListableBeanFactory beanFactory) throws IOException {
+        
+        String[] names = beanFactory.getBeanDefinitionNames();
+        for (String name : names) {
+            if (!canSnapshot(beanFactory.getBeanDefinition(name))) {
+                log.info("Not saving bean definition snapshot. Bean '" + name + "' is not supported.");
+                return false;
+            }
+        }
+        
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(tmp))));
+        boolean saved = false;
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, fingerprint);
+            out.writeInt(importedResources.length);
+            for (Resource resource : importedResources) {
+                writeString(out, resource.getURL().toString());
+                out.writeLong(checksum(resource));
+            }
+            out.writeInt(names.length);
+            int aliasCount = 0;
+            for (String name : names) {
+                writeString(out, name);
+                writeBeanDefinition(out, beanFactory.getBeanDefinition(name));
+                aliasCount += beanFactory.getAliases(name).length;
+            }
+            out.writeInt(aliasCount);
+            for (String name : names) {
+                for (String alias : beanFactory.getAliases(name)) {
+                    writeString(out, name);
+                    writeString(out, alias);
+                }
+            }
+            saved = true;
+        } finally {
+            out.close();
+            if (!saved) {
+                tmp.delete();
+            }
+        }
+        file.delete();
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Failed to rename '" + tmp + "' to '" + file + "'");
+        }
+        return true;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = s.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Returns <code>true</code> if the specified bean definition and all the
+     * values it contains can be saved in a snapshot. Annotated bean 
+     * definitions, such as the ones found by classpath scanning, are never
+     * supported.
+     */
+    public static boolean canSnapshot(BeanDefinition bd) {
+        if (!(bd instanceof AbstractBeanDefinition) || bd instanceof AnnotatedBeanDefinition) {
+            return false;
+        }
+        AbstractBeanDefinition def = (AbstractBeanDefinition) bd;
+        if (!def.getQualifiers().isEmpty() || !def.getMethodOverrides().isEmpty()
+                || def.attributeNames().length > 0) {
+            return false;
+        }
+        ConstructorArgumentValues cav = def.getConstructorArgumentValues();
+        for (Object o : cav.getIndexedArgumentValues().values()) {
+            if (!canSnapshotValue(((ConstructorArgumentValues.ValueHolder) o).getValue())) {
+                return false;
+            }
+        }
+        for (Object o : cav.getGenericArgumentValues()) {
+            if (!canSnapshotValue(((ConstructorArgumentValues.ValueHolder) o).getValue())) {
+                return false;
+            }
+        }
+        for (PropertyValue pv : def.getPropertyValues().getPropertyValues()) {
+            if (!canSnapshotValue(pv.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean canSnapshotValue(Object value) {
+        if (value == null || value instanceof String || value instanceof TypedStringValue
+                || value instanceof RuntimeBeanReference || value instanceof RuntimeBeanNameReference) {
+            return true;
+        }
+        if (value instanceof BeanDefinitionHolder) {
+            return canSnapshot(((BeanDefinitionHolder) value).getBeanDefinition());
+        }
+        if (value instanceof BeanDefinition) {
+            return canSnapshot((BeanDefinition) value);
+        }
+        if (value instanceof ManagedList || value instanceof ManagedSet) {
+            for (Object o : (Collection<?>) value) {
+                if (!canSnapshotValue(o)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (value instanceof ManagedMap || value instanceof ManagedProperties) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!canSnapshotValue(entry.getKey()) || !canSnapshotValue(entry.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes a bean definition which {@link #canSnapshot(BeanDefinition)}.
+     */
+    private static void writeBeanDefinition(DataOutputStream out, BeanDefinition bd) throws IOException {
+        AbstractBeanDefinition def = (AbstractBeanDefinition) bd;
+        writeString(out, def.getBeanClassName());
+        writeString(out, def.getParentName());
+        writeString(out, def.getScope());
+        out.writeBoolean(def.isAbstract());
+        out.writeBoolean(def.isLazyInit());
+        out.writeInt(def.getAutowireMode());
+        out.writeInt(def.getDependencyCheck());
+        String[] dependsOn = def.getDependsOn();
+        out.writeInt(dependsOn == null ? -1 : dependsOn.length);
+        if (dependsOn != null) {
+            for (String s : dependsOn) {
+                writeString(out, s);
+            }
+        }
+        out.writeBoolean(def.isAutowireCandidate());
+        out.writeBoolean(def.isPrimary());
+        writeString(out, def.getFactoryBeanName());
+        writeString(out, def.getFactoryMethodName());
+        writeString(out, def.getInitMethodName());
+        out.writeBoolean(def.isEnforceInitMethod());
+        writeString(out, def.getDestroyMethodName());
+        out.writeBoolean(def.isEnforceDestroyMethod());
+        out.writeBoolean(def.isSynthetic());
+        out.writeInt(def.getRole());
+        writeString(out, def.getDescription());
+        writeString(out, def.getResourceDescription());
+
+        ConstructorArgumentValues cav = def.getConstructorArgumentValues();
+        Map<?, ?> indexed = cav.getIndexedArgumentValues();
+        out.writeInt(indexed.size());
+        for (Map.Entry<?, ?> entry : indexed.entrySet()) {
+            out.writeInt((Integer) entry.getKey());
+            writeValueHolder(out, (ConstructorArgumentValues.ValueHolder) entry.getValue());
+        }
+        Collection<?> generic = cav.getGenericArgumentValues();
+        out.writeInt(generic.size());
+        for (Object o : generic) {
+            writeValueHolder(out, (ConstructorArgumentValues.ValueHolder) o);
+        }
+
+        PropertyValue[] pvs = def.getPropertyValues().getPropertyValues();
+        out.writeInt(pvs.length);
+        for (PropertyValue pv : pvs) {
+            writeString(out, pv.getName());
+            writeValue(out, pv.getValue());
+        }
+    }
+
+    private static BeanDefinition readBeanDefinition(DataInputStream in) throws IOException {
+        GenericBeanDefinition def = new GenericBeanDefinition();
+        def.setBeanClassName(readString(in));
+        def.setParentName(readString(in));
+        def.setScope(readString(in));
+        def.setAbstract(in.readBoolean());
+        def.setLazyInit(in.readBoolean());
+        def.setAutowireMode(in.readInt());
+        def.setDependencyCheck(in.readInt());
+        int dependsOnLength = in.readInt();
+        if (dependsOnLength != -1) {
+            String[] dependsOn = new String[dependsOnLength];
+            for (int i = 0; i < dependsOnLength; i++) {
+                dependsOn[i] = readString(in);
+            }
+            def.setDependsOn(dependsOn);
+        }
+        def.setAutowireCandidate(in.readBoolean());
+        def.setPrimary(in.readBoolean());
+        def.setFactoryBeanName(readString(in));
+        def.setFactoryMethodName(readString(in));
+        def.setInitMethodName(readString(in));
+        def.setEnforceInitMethod(in.readBoolean());
+        def.setDestroyMethodName(readString(in));
+        def.setEnforceDestroyMethod(in.readBoolean());
+        def.setSynthetic(in.readBoolean());
+        def.setRole(in.readInt());
+        def.setDescription(readString(in));
+        def.setResourceDescription(readString(in));
+
+        ConstructorArgumentValues cav = new ConstructorArgumentValues();
+        int indexedCount = in.readInt();
+        for (int i = 0; i < indexedCount; i++) {
+            int index = in.readInt();
+            Object value = readValue(in);
+            String type = readString(in);
+            cav.addIndexedArgumentValue(index, value, type);
+        }
+        int genericCount = in.readInt();
+        for (int i = 0; i < genericCount; i++) {
+            Object value = readValue(in);
+            String type = readString(in);
+            cav.addGenericArgumentValue(value, type);
+        }
+        def.setConstructorArgumentValues(cav);
+
+        MutablePropertyValues pvs = new MutablePropertyValues();
+        int pvCount = in.readInt();
+        for (int i = 0; i < pvCount; i++) {
+            String name = readString(in);
+            pvs.addPropertyValue(name, readValue(in));
+        }
+        def.setPropertyValues(pvs);
+        return def;
+    }
+
+    private static void writeValueHolder(DataOutputStream out, ConstructorArgumentValues.ValueHolder vh)
+            throws IOException {
+        writeValue(out, vh.getValue());
+        writeString(out, vh.getType());
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof TypedStringValue) {
+            TypedStringValue tsv = (TypedStringValue) value;
+            out.writeByte(TYPED_STRING);
+            writeString(out, tsv.getValue());
+            writeString(out, tsv.hasTargetType() ? tsv.getTargetType().getName() : tsv.getTargetTypeName());
+        } else if (value instanceof RuntimeBeanReference) {
+            RuntimeBeanReference ref = (RuntimeBeanReference) value;
+            out.writeByte(BEAN_REFERENCE);
+            writeString(out, ref.getBeanName());
+            out.writeBoolean(ref.isToParent());
+        } else if (value instanceof RuntimeBeanNameReference) {
+            out.writeByte(BEAN_NAME_REFERENCE);
+            writeString(out, ((RuntimeBeanNameReference) value).getBeanName());
+        } else if (value instanceof BeanDefinitionHolder) {
+            BeanDefinitionHolder holder = (BeanDefinitionHolder) value;
+            out.writeByte(BEAN_DEFINITION_HOLDER);
+            writeString(out, holder.getBeanName());
+            String[] aliases = holder.getAliases();
+            out.writeInt(aliases == null ? 0 : aliases.length);
+            if (aliases != null) {
+                for (String alias : aliases) {
+                    writeString(out, alias);
+                }
+            }
+            writeBeanDefinition(out, holder.getBeanDefinition());
+        } else if (value instanceof BeanDefinition) {
+            out.writeByte(BEAN_DEFINITION);
+            writeBeanDefinition(out, (BeanDefinition) value);
+        } else if (value instanceof ManagedList) {
+            ManagedList list = (ManagedList) value;
+            out.writeByte(LIST);
+            out.writeBoolean(list.isMergeEnabled());
+            writeValues(out, list);
+        } else if (value instanceof ManagedSet) {
+            ManagedSet set = (ManagedSet) value;
+            out.writeByte(SET);
+            out.writeBoolean(set.isMergeEnabled());
+            writeValues(out, set);
+        } else if (value instanceof ManagedMap) {
+            ManagedMap map = (ManagedMap) value;
+            out.writeByte(MAP);
+            out.writeBoolean(map.isMergeEnabled());
+            writeEntries(out, map);
+        } else if (value instanceof ManagedProperties) {
+            ManagedProperties props = (ManagedProperties) value;
+            out.writeByte(PROPERTIES);
+            out.writeBoolean(props.isMergeEnabled());
+            writeEntries(out, props);
+        } else {
+            // Never happens since canSnapshot() has checked all values
+            throw new IllegalArgumentException("Unsupported value type: " + value.getClass().getName());
+        }
+    }
+
+    private static void writeValues(DataOutputStream out, Collection<?> values) throws IOException {
+        out.writeInt(values.size());
+        for (Object o : values) {
+            writeValue(out, o);
+        }
+    }
+
+    private static void writeEntries(DataOutputStream out, Map<?, ?> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            writeValue(out, entry.getKey());
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object readValue(DataInputStream in) throws IOException {
+        int type = in.readByte();
+        switch (type) {
+        case NULL:
+            return null;
+        case STRING:
+            return readString(in);
+        case TYPED_STRING: {
+            String value = readString(in);
+            String targetTypeName = readString(in);
+            return targetTypeName != null ? new TypedStringValue(value, targetTypeName) : new TypedStringValue(value);
+        }
+        case BEAN_REFERENCE: {
+            String beanName = readString(in);
+            return new RuntimeBeanReference(beanName, in.readBoolean());
+        }
+        case BEAN_NAME_REFERENCE:
+            return new RuntimeBeanNameReference(readString(in));
+        case BEAN_DEFINITION_HOLDER: {
+            String beanName = readString(in);
+            String[] aliases = new String[in.readInt()];
+            for (int i = 0; i < aliases.length; i++) {
+                aliases[i] = readString(in);
+            }
+            return new BeanDefinitionHolder(readBeanDefinition(in), beanName, aliases);
+        }
+        case BEAN_DEFINITION:
+            return readBeanDefinition(in);
+        case LIST: {
+            ManagedList list = new ManagedList();
+            list.setMergeEnabled(in.readBoolean());
+            readValues(in, list);
+            return list;
+        }
+        case SET: {
+            ManagedSet set = new ManagedSet();
+            set.setMergeEnabled(in.readBoolean());
+            readValues(in, set);
+            return set;
+        }
+        case MAP: {
+            ManagedMap map = new ManagedMap();
+            map.setMergeEnabled(in.readBoolean());
+            readEntries(in, map);
+            return map;
+        }
+        case PROPERTIES: {
+            ManagedProperties props = new ManagedProperties();
+            props.setMergeEnabled(in.readBoolean());
+            readEntries(in, props);
+            return props;
+        }
+        default:
+            throw new IOException("Unknown value type " + type);
+        }
+    }
+
+    private static void readValues(DataInputStream in, Collection<Object> values) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            values.add(readValue(in));
+        }
+    }
+
+    private static void readEntries(DataInputStream in, Map<Object, Object> map) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            Object key = readValue(in);
+            map.put(key, readValue(in));
+        }
+    }
+}
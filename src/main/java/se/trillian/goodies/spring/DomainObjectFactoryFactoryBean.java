@@ -17,18 +17,31 @@ package se.trillian.goodies.spring;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
 
+import net.sf.cglib.proxy.Callback;
+import net.sf.cglib.proxy.CallbackFilter;
+import net.sf.cglib.proxy.Enhancer;
+import net.sf.cglib.proxy.MethodInterceptor;
+import net.sf.cglib.proxy.MethodProxy;
+import net.sf.cglib.proxy.NoOp;
+import net.sf.cglib.reflect.FastClass;
+import net.sf.cglib.reflect.FastConstructor;
+
 import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.BeanFactory;
 import org.springframework.beans.factory.BeanFactoryAware;
-import org.springframework.beans.factory.BeanFactoryUtils;
 import org.springframework.beans.factory.FactoryBean;
 import org.springframework.beans.factory.ListableBeanFactory;
+import org.springframework.beans.factory.NoSuchBeanDefinitionException;
+import org.springframework.beans.factory.ObjectFactory;
 import org.springframework.beans.factory.config.AbstractFactoryBean;
 import org.springframework.util.Assert;
 
@@ -48,7 +61,31 @@ import org.springframework.util.Assert;
  * the parameter types of the factory method are a prefix of the constructor 
  * parameter types. The parameters which aren't specified by the factory method
  * will be injected from the Spring bean factory which created this 
- * {@link FactoryBean}.
+ * {@link FactoryBean}. The injected beans are looked up by type once per 
+ * factory method, the first time the method is called. Singletons are then
+ * reused while prototypes are retrieved by name on every call.
+ * </p>
+ * <p>
+ * By default the factory is a JDK dynamic proxy which looks up the 
+ * constructor and invokes it using reflection on every call. If the
+ * <code>generateFactory</code> property is set a factory class will be
+ * generated using cglib instead. Each factory method of the generated class
+ * dispatches directly to its own callback which invokes the constructor 
+ * through a cglib {@link FastClass}, i.e. without any lookups or 
+ * reflection. cglib must be on the classpath for this to work.
+ * </p>
+ * <p>
+ * The factory interface may also declare <code>void release(...)</code> 
+ * methods taking a single domain object. If the <code>recycling</code> 
+ * property is set released objects are kept in a bounded pool (see 
+ * <code>poolSize</code>) and handed out again by the <code>create</code>
+ * methods after being reinitialized using {@link Recyclable#reset(Object[])}.
+ * The implementation class must implement {@link Recyclable} in that case.
+ * Released objects must not be used by the caller afterwards. Releasing an
+ * object which isn't an instance of the implementation class fails and so
+ * does, in most cases, releasing an object which has already been released
+ * (see {@link RecyclingPool}). If recycling is disabled the 
+ * <code>release</code> methods do nothing.
  * </p>
  *
  * @author Niklas Therning
@@ -62,6 +99,11 @@ public class DomainObjectFactoryFactoryBean extends AbstractFactoryBean implemen
     private Class<?> implementationClass;
     private Class<?> factoryClass;
     private ListableBeanFactory beanFactory;
+    private boolean generateFactory = false;
+    private boolean recycling = false;
+    private int poolSize = 1024;
+    private RecyclingPool pool = null;
+    private Map<Method, Constructor<?>> constructors = null;
     
     public void setImplementationClass(Class<?> implementationClass) {
         this.implementationClass = implementationClass;
@@ -75,15 +117,54 @@ public class DomainObjectFactoryFactoryBean extends AbstractFactoryBean implemen
         this.factoryClass = factoryClass;
     }
 
+    public void setGenerateFactory(boolean generateFactory) {
+        this.generateFactory = generateFactory;
+    }
+
+    public void setRecycling(boolean recycling) {
+        this.recycling = recycling;
+    }
+
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
     public void setBeanFactory(BeanFactory beanFactory) throws BeansException {
        this.beanFactory = (ListableBeanFactory) beanFactory;
     }
 
     @Override
     protected Object createInstance() throws Exception {
+        pool = recycling ? new RecyclingPool(implementationClass, poolSize) : null;
+        if (generateFactory) {
+            return createGeneratedFactory();
+        }
         return Proxy.newProxyInstance(this.getClass().getClassLoader(), 
                 new Class[] {factoryClass}, new FactoryInvocationHandler());
     }
+    
+    private Object createGeneratedFactory() {
+        FactoryMethodFilter filter = new FactoryMethodFilter(factoryClass);
+        FastClass fastClass = FastClass.create(implementationClass);
+        Callback[] callbacks = new Callback[filter.methods.length + 1];
+        callbacks[0] = NoOp.INSTANCE;
+        for (int i = 0; i < filter.methods.length; i++) {
+            if (isReleaseMethod(filter.methods[i])) {
+                callbacks[i + 1] = new ReleaseMethodInterceptor();
+                continue;
+            }
+            Constructor<?> constructor = constructors.get(filter.methods[i]);
+            callbacks[i + 1] = new FactoryMethodInterceptor(fastClass.getConstructor(constructor));
+        }
+        
+        Enhancer enhancer = new Enhancer();
+        enhancer.setClassLoader(factoryClass.getClassLoader());
+        enhancer.setInterfaces(new Class<?>[] {factoryClass});
+        enhancer.setUseFactory(false);
+        enhancer.setCallbackFilter(filter);
+        enhancer.setCallbacks(callbacks);
+        return enhancer.create();
+    }
 
     public Class<?> getObjectType() {
         return factoryClass;
@@ -100,19 +181,58 @@ public class DomainObjectFactoryFactoryBean extends AbstractFactoryBean implemen
         Assert.isTrue(factoryClass.isInterface(), "Factory class '" 
                 + factoryClass + "' is not an interface");
 
+        if (recycling) {
+            Assert.isTrue(Recyclable.class.isAssignableFrom(implementationClass), "Implementation class '"
+                    + implementationClass + "' must implement '" + Recyclable.class + "' when recycling");
+            Assert.isTrue(poolSize > 0, "poolSize must be positive");
+        }
+        Map<Method, Constructor<?>> constructors = new HashMap<Method, Constructor<?>>();
         for (Method m: factoryClass.getMethods()) {
+            if (isReleaseMethod(m)) {
+                Assert.isTrue(void.class.equals(m.getReturnType()) && m.getParameterTypes().length == 1
+                        && m.getParameterTypes()[0].isAssignableFrom(interfaceClass), "Release method '" 
+                        + m + "' is invalid. Must return void and take a single '" + interfaceClass + "'.");
+                continue;
+            }
             Assert.isTrue("create".equals(m.getName()), "Domain object factory method '" 
-                    + m + "' is invalid. All methods must be named 'create'.");
+                    + m + "' is invalid. All methods must be named 'create' or 'release'.");
             Assert.isTrue(interfaceClass.equals(m.getReturnType()), "Factory method '" 
                     + m + "' does not return instances of '" + interfaceClass + "'");
-            findMatchingConstructor(implementationClass, m);
+            constructors.put(m, findMatchingConstructor(implementationClass, m));
         }
         Assert.isTrue(factoryClass.getMethods().length > 0, "Factory class '" 
                 + factoryClass + "' does not define any methods");
+        // Reused when creating the factory
+        this.constructors = constructors;
         
         super.afterPropertiesSet();
     }
 
+    private static boolean isReleaseMethod(Method m) {
+        return "release".equals(m.getName());
+    }
+    
+    /**
+     * Returns a recycled instance reinitialized using the specified 
+     * constructor arguments or <code>null</code> if there is none.
+     */
+    private Object acquire(Object[] args) {
+        if (pool == null) {
+            return null;
+        }
+        Object o = pool.acquire();
+        if (o != null) {
+            ((Recyclable) o).reset(args);
+        }
+        return o;
+    }
+    
+    private void release(Object o) {
+        if (pool != null && o != null) {
+            pool.release(o);
+        }
+    }
+    
     private static Constructor<?> findMatchingConstructor(Class<?> clazz, Method m) {
         LinkedList<Constructor<?>> constructors = new LinkedList<Constructor<?>>();
         Constructor<?> directMatch = null;
@@ -150,14 +270,148 @@ public class DomainObjectFactoryFactoryBean extends AbstractFactoryBean implemen
         return true;
     }
     
+    /**
+     * Resolves the trailing constructor arguments which aren't passed to a
+     * factory method. The dependencies are looked up by type the first time
+     * they are needed, i.e. once the context has been refreshed, and then 
+     * cached. Singletons are cached as is while prototypes are retrieved by
+     * their precomputed bean name on every call.
+     */
+    private class InjectedArgs {
+        private final Class<?>[] paramTypes;
+        private volatile ObjectFactory[] dependencies = null;
+        
+        public InjectedArgs(Class<?>[] paramTypes) {
+            this.paramTypes = paramTypes;
+        }
+        
+        public Object[] resolve(Object[] args) {
+            ObjectFactory[] deps = dependencies;
+            if (deps == null) {
+                deps = lookup(args.length);
+                dependencies = deps;
+            }
+            Object[] modifiedArgs = new Object[paramTypes.length];
+            System.arraycopy(args, 0, modifiedArgs, 0, args.length);
+            
+            for (int i = args.length; i < modifiedArgs.length; i++) {
+                modifiedArgs[i] = deps[i - args.length].getObject();
+            }
+            return modifiedArgs;
+        }
+        
+        private ObjectFactory[] lookup(int argCount) {
+            ObjectFactory[] deps = new ObjectFactory[paramTypes.length - argCount];
+            for (int i = 0; i < deps.length; i++) {
+                Class<?> type = paramTypes[argCount + i];
+                String[] names = beanFactory.getBeanNamesForType(type);
+                if (names.length != 1) {
+                    throw new NoSuchBeanDefinitionException(type, "expected single bean but found " 
+                            + names.length);
+                }
+                final String name = names[0];
+                if (beanFactory.isSingleton(name)) {
+                    final Object bean = beanFactory.getBean(name);
+                    deps[i] = new ObjectFactory() {
+                        public Object getObject() {
+                            return bean;
+                        }
+                    };
+                } else {
+                    deps[i] = new ObjectFactory() {
+                        public Object getObject() {
+                            return beanFactory.getBean(name);
+                        }
+                    };
+                }
+            }
+            return deps;
+        }
+    }
+    
+    /**
+     * Maps each factory method to its own callback. Object methods are mapped
+     * to {@link NoOp}. The methods are sorted to get the same mapping every
+     * time which lets cglib reuse the generated class.
+     */
+    private static class FactoryMethodFilter implements CallbackFilter {
+        private final Class<?> factoryClass;
+        private final Method[] methods;
+        
+        public FactoryMethodFilter(Class<?> factoryClass) {
+            this.factoryClass = factoryClass;
+            this.methods = factoryClass.getMethods();
+            Arrays.sort(this.methods, new Comparator<Method>() {
+                public int compare(Method m1, Method m2) {
+                    return m1.toString().compareTo(m2.toString());
+                }
+            });
+        }
+        
+        public int accept(Method method) {
+            for (int i = 0; i < methods.length; i++) {
+                if (method.getName().equals(methods[i].getName()) 
+                        && Arrays.equals(method.getParameterTypes(), methods[i].getParameterTypes())) {
+                    return i + 1;
+                }
+            }
+            return 0;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof FactoryMethodFilter 
+                && ((FactoryMethodFilter) o).factoryClass.equals(factoryClass);
+        }
+        
+        @Override
+        public int hashCode() {
+            return factoryClass.hashCode();
+        }
+    }
+    
+    private class FactoryMethodInterceptor implements MethodInterceptor {
+        private final FastConstructor constructor;
+        private final int paramCount;
+        private final InjectedArgs injectedArgs;
+        
+        public FactoryMethodInterceptor(FastConstructor constructor) {
+            this.constructor = constructor;
+            this.paramCount = constructor.getParameterTypes().length;
+            this.injectedArgs = new InjectedArgs(constructor.getParameterTypes());
+        }
+        
+        public Object intercept(Object obj, Method method, Object[] args, MethodProxy proxy) throws Throwable {
+            if (paramCount != args.length) {
+                args = injectedArgs.resolve(args);
+            }
+            Object o = acquire(args);
+            if (o != null) {
+                return o;
+            }
+            try {
+                return constructor.newInstance(args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+    
+    private class ReleaseMethodInterceptor implements MethodInterceptor {
+        public Object intercept(Object obj, Method method, Object[] args, MethodProxy proxy) throws Throwable {
+            release(args[0]);
+            return null;
+        }
+    }
+    
     private class FactoryInvocationHandler implements InvocationHandler {
-        private final Map<Method, Constructor<?>> constructors;
+        private final Map<Method, InjectedArgs> injectedArgs;
         
         public FactoryInvocationHandler() {
-            this.constructors = new HashMap<Method, Constructor<?>>();
+            this.injectedArgs = new HashMap<Method, InjectedArgs>();
             
-            for (Method m: factoryClass.getMethods()) {
-                this.constructors.put(m, findMatchingConstructor(implementationClass, m));
+            for (Map.Entry<Method, Constructor<?>> entry : constructors.entrySet()) {
+                this.injectedArgs.put(entry.getKey(), new InjectedArgs(entry.getValue().getParameterTypes()));
             }
         }
 
@@ -173,23 +427,23 @@ public class DomainObjectFactoryFactoryBean extends AbstractFactoryBean implemen
                     return args[0] == this;
                 }
             }
+            if (isReleaseMethod(method)) {
+                release(args[0]);
+                return null;
+            }
             if (args == null) {
                 args = EMPTY_ARGS;
             }
             Constructor<?> constructor = constructors.get(method);
-            Class<?>[] paramTypes = constructor.getParameterTypes();
-            if (paramTypes.length == args.length) {
-                return constructor.newInstance(args);
+            InjectedArgs injected = injectedArgs.get(method);
+            if (injected.paramTypes.length != args.length) {
+                args = injected.resolve(args);
             }
-            
-            Object[] modifiedArgs = new Object[paramTypes.length];
-            System.arraycopy(args, 0, modifiedArgs, 0, args.length);
-            
-            for (int i = args.length; i < modifiedArgs.length; i++) {
-                modifiedArgs[i] = BeanFactoryUtils.beanOfType(beanFactory, paramTypes[i]);
+            Object o = acquire(args);
+            if (o != null) {
+                return o;
             }
-            
-            return constructor.newInstance(modifiedArgs);
+            return constructor.newInstance(args);
         }
         
     }
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies.spring;
+
+import java.beans.Introspector;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.MutablePropertyValues;
+import org.springframework.beans.factory.BeanDefinitionStoreException;
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.beans.factory.support.BeanDefinitionRegistry;
+import org.springframework.beans.factory.support.RootBeanDefinition;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.core.io.support.ResourcePatternResolver;
+import org.springframework.core.type.ClassMetadata;
+import org.springframework.core.type.classreading.CachingMetadataReaderFactory;
+import org.springframework.core.type.classreading.MetadataReaderFactory;
+import org.springframework.util.Assert;
+import org.springframework.util.ClassUtils;
+
+/**
+ * {@link BeanFactoryPostProcessor} which scans packages for domain object
+ * interfaces having an inner <code>Factory</code> interface and registers a
+ * {@link DomainObjectFactoryFactoryBean} for each such interface which has
+ * exactly one concrete implementation class in the scanned packages. The
+ * bean will be named after the domain object interface, e.g.
+ * <code>accountFactory</code> for <code>Account</code>. Interfaces with
+ * no or more than one implementation and interfaces for which there already
+ * is a bean with the same name are skipped. The classes are read using ASM
+ * so no classes are loaded while scanning.
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+public class DomainObjectFactoryScanner implements BeanFactoryPostProcessor {
+    private static final Logger log = LoggerFactory.getLogger(DomainObjectFactoryScanner.class);
+
+    private static final String FACTORY_SUFFIX = "$Factory";
+
+    private String[] basePackages;
+    private boolean generateFactory = false;
+    private ResourcePatternResolver resourcePatternResolver = new PathMatchingResourcePatternResolver();
+
+    public void setBasePackages(String[] basePackages) {
+        this.basePackages = basePackages;
+    }
+
+    public void setGenerateFactory(boolean generateFactory) {
+        this.generateFactory = generateFactory;
+    }
+
+    public void postProcessBeanFactory(ConfigurableListableBeanFactory beanFactory) throws BeansException {
+        Assert.notNull(basePackages, "basePackages");
+        Assert.isInstanceOf(BeanDefinitionRegistry.class, beanFactory);
+        BeanDefinitionRegistry registry = (BeanDefinitionRegistry) beanFactory;
+
+        long start = System.currentTimeMillis();
+        Map<String, String> pairs;
+        try {
+            pairs = scan();
+        } catch (IOException e) {
+            throw new BeanDefinitionStoreException("Failed to scan packages for domain object factories", e);
+        }
+
+        int count = 0;
+        for (Map.Entry<String, String> pair : pairs.entrySet()) {
+            String beanName = Introspector.decapitalize(ClassUtils.getShortName(pair.getKey())) + "Factory";
+            if (registry.containsBeanDefinition(beanName)) {
+                log.debug("Skipping domain object factory '" + beanName + "' which is already defined");
+                continue;
+            }
+            MutablePropertyValues pvs = new MutablePropertyValues();
+            pvs.addPropertyValue("interfaceClass", pair.getKey());
+            pvs.addPropertyValue("implementationClass", pair.getValue());
+            pvs.addPropertyValue("generateFactory", Boolean.valueOf(generateFactory));
+            registry.registerBeanDefinition(beanName,
+                    new RootBeanDefinition(DomainObjectFactoryFactoryBean.class, pvs));
+            count++;
+        }
+        log.info("Registered " + count + " domain object factories in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Returns the domain object interfaces found mapped to their
+     * implementation classes.
+     */
+    private Map<String, String> scan() throws IOException {
+        MetadataReaderFactory readerFactory = new CachingMetadataReaderFactory(resourcePatternResolver);
+        Set<String> domainInterfaces = new LinkedHashSet<String>();
+        Map<String, ClassMetadata> classes = new HashMap<String, ClassMetadata>();
+        for (String basePackage : basePackages) {
+            String pattern = ResourcePatternResolver.CLASSPATH_ALL_URL_PREFIX
+                + ClassUtils.convertClassNameToResourcePath(basePackage.trim()) + "/**/*.class";
+            for (Resource resource : resourcePatternResolver.getResources(pattern)) {
+                if (!resource.isReadable()) {
+                    continue;
+                }
+                ClassMetadata metadata = readerFactory.getMetadataReader(resource).getClassMetadata();
+                classes.put(metadata.getClassName(), metadata);
+                if (metadata.isInterface() && metadata.getClassName().endsWith(FACTORY_SUFFIX)
+                        && metadata.hasEnclosingClass()) {
+                    domainInterfaces.add(metadata.getEnclosingClassName());
+                }
+            }
+        }
+
+        Map<String, List<String>> implementations = new HashMap<String, List<String>>();
+        for (ClassMetadata metadata : classes.values()) {
+            if (!metadata.isConcrete() || !metadata.isIndependent()) {
+                continue;
+            }
+            for (String interfaceName : getInterfaceNames(metadata, classes)) {
+                if (domainInterfaces.contains(interfaceName)) {
+                    List<String> list = implementations.get(interfaceName);
+                    if (list == null) {
+                        list = new ArrayList<String>();
+                        implementations.put(interfaceName, list);
+                    }
+                    list.add(metadata.getClassName());
+                }
+            }
+        }
+
+        Map<String, String> pairs = new HashMap<String, String>();
+        for (String interfaceName : domainInterfaces) {
+            ClassMetadata metadata = classes.get(interfaceName);
+            if (metadata == null || !metadata.isInterface()) {
+                continue;
+            }
+            List<String> list = implementations.get(interfaceName);
+            if (list == null || list.size() != 1) {
+                log.warn("Skipping domain object interface '" + interfaceName + "' with "
+                        + (list == null ? 0 : list.size()) + " implementation classes: " + list);
+                continue;
+            }
+            pairs.put(interfaceName, list.get(0));
+        }
+        return pairs;
+    }
+
+    /**
+     * Returns the interfaces directly implemented by the specified class and
+     * its scanned super classes.
+     */
+    private static Set<String> getInterfaceNames(ClassMetadata metadata, Map<String, ClassMetadata> classes) {
+        Set<String> result = new LinkedHashSet<String>();
+        while (metadata != null) {
+            for (String name : metadata.getInterfaceNames()) {
+                result.add(name);
+            }
+            metadata = metadata.hasSuperClass() ? classes.get(metadata.getSuperClassName()) : null;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies.spring;
+
+/**
+ * Interface implemented by beans which queue work that should be completed
+ * before the application context is closed. {@link ShutdownCoordinator}
+ * drains all such singleton beans before closing the context.
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+public interface Drainable {
+    /**
+     * Stops accepting new work and waits for the already queued work to
+     * complete.
+     *
+     * @param timeoutMillis the maximum number of milliseconds to wait.
+     * @return <code>true</code> if all queued work was completed,
+     *         <code>false</code> if the timeout elapsed first.
+     */
+    boolean drain(long timeoutMillis) throws InterruptedException;
+}
@@ -15,20 +15,44 @@
  */
 package se.trillian.goodies.spring;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ListableBeanFactory;
 import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
 import org.springframework.beans.factory.config.PropertyPlaceholderConfigurer;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.core.io.Resource;
+import org.springframework.util.DefaultPropertiesPersister;
+import org.springframework.util.PropertiesPersister;
+
+import se.trillian.goodies.HostIdentity;
 
 /**
  * <p>
@@ -76,17 +100,61 @@ import org.springframework.core.io.Resource;
  * <p>
  * The default location is <code>classpath:/spring/spring.properties</code>.
  * </p>
+ * <p>
+ * Files which haven't been loaded before are read concurrently. Loaded files
+ * are shared by all instances of this class in the same JVM which use the 
+ * same file encoding, {@link PropertiesPersister} class and 
+ * <code>ignoreResourceNotFound</code> setting so when several contexts use 
+ * the same locations each file will only be read once (unless it has been 
+ * modified in between). The shared files are released when the last 
+ * configurer using them is destroyed.
+ * </p>
+ * <p>
+ * If <code>reloadable</code> has been set to <code>true</code> the files
+ * listed above which can be resolved as files in the file system will be 
+ * checked for modifications every <code>reloadInterval</code> milliseconds. 
+ * Only the files which have changed will be read again. The registered 
+ * {@link PropertiesReloadListener}s and all singleton beans implementing 
+ * {@link PropertiesReloadListener} will then be notified of the keys of the 
+ * properties which have changed. Bean definitions which have already been 
+ * processed are not affected by a reload.
+ * </p>
  * 
  * @author Niklas Therning
  * @version $Id$
  */
 public class HostNameBasedPropertyPlaceHolderConfigurer extends
-                PropertyPlaceholderConfigurer {
+                PropertyPlaceholderConfigurer implements DisposableBean {
 
     private static final Logger log = LoggerFactory.getLogger(HostNameBasedPropertyPlaceHolderConfigurer.class);
     
+    private static final int LOADER_THREADS = 4;
+    
+    /**
+     * Loaded properties files shared by all instances in the JVM keyed on
+     * the {@link LoadSettings} and location.
+     */
+    private static final Map<List<Object>, Layer> layers = new HashMap<List<Object>, Layer>();
+    private static final ConcurrentMap<List<Object>, MergedLayers> mergedLayersCache = 
+        new ConcurrentHashMap<List<Object>, MergedLayers>();
+    private static int activeInstances = 0;
+    
     private List<Filter> hostNameFilters = new ArrayList<Filter>();
     private Resource[] locations;
+    private Resource[] resolvedLocations = new Resource[0];
+    
+    private boolean ignoreResourceNotFound = false;
+    private String fileEncoding;
+    private PropertiesPersister propertiesPersister = new DefaultPropertiesPersister();
+
+    private boolean reloadable = false;
+    private long reloadInterval = 10000;
+    private List<PropertiesReloadListener> reloadListeners = new ArrayList<PropertiesReloadListener>();
+    private Layer[] mergedLayers;
+    private ListableBeanFactory beanFactory;
+    private Properties lastProperties;
+    private Timer reloadTimer;
+    private boolean active = false;
     
     public HostNameBasedPropertyPlaceHolderConfigurer() {
         setLocation(new ClassPathResource("/spring/spring.properties"));
@@ -104,6 +172,50 @@ public class HostNameBasedPropertyPlaceHolderConfigurer extends
         }
     }
     
+    /**
+     * Sets whether the loaded properties files should be checked for 
+     * modifications. Default is <code>false</code>.
+     */
+    public void setReloadable(boolean reloadable) {
+        this.reloadable = reloadable;
+    }
+    
+    /**
+     * Sets the number of milliseconds between checks for modified properties
+     * files when <code>reloadable</code> is <code>true</code>. Default is 
+     * 10000.
+     */
+    public void setReloadInterval(long reloadInterval) {
+        this.reloadInterval = reloadInterval;
+    }
+    
+    public void setReloadListeners(List<PropertiesReloadListener> reloadListeners) {
+        this.reloadListeners = new ArrayList<PropertiesReloadListener>(reloadListeners);
+    }
+    
+    public synchronized void addReloadListener(PropertiesReloadListener listener) {
+        this.reloadListeners.add(listener);
+    }
+    
+    @Override
+    public void setIgnoreResourceNotFound(boolean ignoreResourceNotFound) {
+        super.setIgnoreResourceNotFound(ignoreResourceNotFound);
+        this.ignoreResourceNotFound = ignoreResourceNotFound;
+    }
+    
+    @Override
+    public void setFileEncoding(String encoding) {
+        super.setFileEncoding(encoding);
+        this.fileEncoding = encoding;
+    }
+    
+    @Override
+    public void setPropertiesPersister(PropertiesPersister propertiesPersister) {
+        super.setPropertiesPersister(propertiesPersister);
+        this.propertiesPersister = propertiesPersister != null 
+                ? propertiesPersister : new DefaultPropertiesPersister();
+    }
+    
     @Override
     public void setLocation(Resource location) {
         this.setLocations(new Resource[] {location});
@@ -117,54 +229,261 @@ public class HostNameBasedPropertyPlaceHolderConfigurer extends
         return properties;
     }
     
+    /**
+     * Loads the expanded locations. Files which haven't been loaded before in
+     * this JVM or which have been modified since are read concurrently. The 
+     * merged result is shared by all configurers using the same locations on
+     * the same host.
+     */
     @Override
-    public void postProcessBeanFactory(
-            ConfigurableListableBeanFactory beanFactory) throws BeansException {
-
-        String hostName = getHostName();
+    protected void loadProperties(Properties props) throws IOException {
+        Layer[] current = getLayers(resolvedLocations);
+        List<Object> key = new ArrayList<Object>();
+        key.add(getHostName());
+        key.add(getLoadSettings());
+        key.addAll(Arrays.asList(resolvedLocations));
+        MergedLayers merged = mergedLayersCache.get(key);
+        if (merged == null || !Arrays.equals(merged.layers, current)) {
+            merged = new MergedLayers(current);
+            mergedLayersCache.put(key, merged);
+        }
+        mergedLayers = merged.layers;
+        props.putAll(merged.properties);
+    }
+    
+    private Layer[] getLayers(final Resource[] locations) throws IOException {
+        LoadSettings settings = getLoadSettings();
+        Layer[] result = new Layer[locations.length];
+        List<Integer> stale = new ArrayList<Integer>();
+        synchronized (layers) {
+            for (int i = 0; i < locations.length; i++) {
+                Layer layer = layers.get(settings.key(locations[i]));
+                if (layer == null || layer.isModified(fileEncoding)) {
+                    stale.add(i);
+                } else {
+                    result[i] = layer;
+                }
+            }
+        }
+        if (stale.isEmpty()) {
+            return result;
+        }
+        
+        if (stale.size() == 1) {
+            int i = stale.get(0);
+            result[i] = loadLayer(locations[i]);
+        } else {
+            ExecutorService executor = createLoaderExecutor(Math.min(stale.size(), LOADER_THREADS));
+            try {
+                loadLayers(locations, stale, result, executor);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        
+        synchronized (layers) {
+            for (int i : stale) {
+                layers.put(settings.key(locations[i]), result[i]);
+            }
+        }
+        return result;
+    }
+    
+    private void loadLayers(final Resource[] locations, List<Integer> stale, 
+            Layer[] result, ExecutorService executor) throws IOException {
+        
+        List<Future<Layer>> futures = new ArrayList<Future<Layer>>();
+        for (final int i : stale) {
+            futures.add(executor.submit(new Callable<Layer>() {
+                public Layer call() throws Exception {
+                    return loadLayer(locations[i]);
+                }
+            }));
+        }
+        for (int j = 0; j < stale.size(); j++) {
+            try {
+                result[stale.get(j)] = futures.get(j).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while loading properties");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+    
+    /**
+     * Creates the executor used to load files concurrently. It is shut down
+     * as soon as the files have been loaded.
+     */
+    private static ExecutorService createLoaderExecutor(int threads) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "HostNameBasedPropertyPlaceHolderConfigurer loader #" 
+                        + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+    
+    private LoadSettings getLoadSettings() {
+        return new LoadSettings(fileEncoding, propertiesPersister.getClass(), ignoreResourceNotFound);
+    }
+    
+    private Layer loadLayer(Resource location) throws IOException {
+        Layer layer = new Layer(location, fileEncoding);
+        log.info("Loading properties file from " + location);
+        InputStream is = null;
         try {
-            
-            List<Resource> tempLocations = new ArrayList<Resource>();
-            for (Resource res : locations) {
-                String basename = res.getFilename();
-                String extension = "";
-                int index = basename.lastIndexOf('.');
-                if (index != -1) {
-                    extension = basename.substring(index + 1);
-                    basename = basename.substring(0, index);
+            is = location.getInputStream();
+            String filename = null;
+            try {
+                filename = location.getFilename();
+            } catch (IllegalStateException e) {
+            }
+            if (filename != null && filename.endsWith(XML_FILE_EXTENSION)) {
+                propertiesPersister.loadFromXml(layer.properties, is);
+            } else if (fileEncoding != null) {
+                propertiesPersister.load(layer.properties, new InputStreamReader(is, fileEncoding));
+            } else {
+                propertiesPersister.load(layer.properties, is);
+            }
+        } catch (IOException e) {
+            if (!ignoreResourceNotFound) {
+                throw e;
+            }
+            log.debug("Could not load properties from " + location + ": " + e.getMessage());
+        } finally {
+            if (is != null) {
+                is.close();
+            }
+        }
+        return layer;
+    }
+    
+    /**
+     * Checks whether any of the loaded properties files have been modified
+     * and if so reloads them and notifies the {@link PropertiesReloadListener}s.
+     * 
+     * @return the keys of the properties which have been added, removed or 
+     *         changed. Empty if no file has been modified.
+     */
+    public synchronized Set<String> reload() throws IOException {
+        boolean modified = mergedLayers == null;
+        LoadSettings settings = getLoadSettings();
+        synchronized (layers) {
+            for (int i = 0; !modified && i < resolvedLocations.length; i++) {
+                Layer layer = layers.get(settings.key(resolvedLocations[i]));
+                modified = layer == null || layer != mergedLayers[i] || layer.isModified(fileEncoding);
+            }
+        }
+        if (!modified) {
+            return new HashSet<String>();
+        }
+        
+        Properties properties = mergeProperties();
+        convertProperties(properties);
+        Set<String> changedKeys = new HashSet<String>();
+        if (lastProperties != null) {
+            Set<Object> keys = new HashSet<Object>(lastProperties.keySet());
+            keys.addAll(properties.keySet());
+            for (Object key : keys) {
+                Object oldValue = lastProperties.get(key);
+                Object newValue = properties.get(key);
+                if (oldValue == null ? newValue != null : !oldValue.equals(newValue)) {
+                    changedKeys.add(key.toString());
                 }
-                tempLocations.add(res.createRelative(basename + "-defaults." + extension));
-                for (Filter f : hostNameFilters) {
-                    String filteredHostName = hostName.replaceAll(f.getPattern(), f.getReplacement());
-                    if (!filteredHostName.equals(hostName)) {
-                        tempLocations.add(res.createRelative(basename + "-defaults-" + filteredHostName +  "." + extension));
-                    }
+            }
+        }
+        lastProperties = properties;
+        if (changedKeys.isEmpty()) {
+            return changedKeys;
+        }
+        
+        log.info("Reloaded properties. Changed keys: " + changedKeys);
+        List<PropertiesReloadListener> listeners = new ArrayList<PropertiesReloadListener>(reloadListeners);
+        if (beanFactory != null) {
+            for (Object o : beanFactory.getBeansOfType(PropertiesReloadListener.class, false, false).values()) {
+                if (!listeners.contains(o)) {
+                    listeners.add((PropertiesReloadListener) o);
                 }
-                tempLocations.add(res.createRelative(basename + "-defaults-" + hostName +  "." + extension));
-                tempLocations.add(res.createRelative(basename + "." + extension));
-                for (Filter f : hostNameFilters) {
-                    String filteredHostName = hostName.replaceAll(f.getPattern(), f.getReplacement());
-                    if (!filteredHostName.equals(hostName)) {
-                        tempLocations.add(res.createRelative(basename + "-" + filteredHostName +  "." + extension));
-                    }
+            }
+        }
+        for (PropertiesReloadListener listener : listeners) {
+            try {
+                listener.propertiesReloaded(properties, changedKeys);
+            } catch (Throwable t) {
+                log.error("PropertiesReloadListener " + listener + " failed: " + t.getMessage(), t);
+            }
+        }
+        return changedKeys;
+    }
+    
+    public void destroy() {
+        if (reloadTimer != null) {
+            reloadTimer.cancel();
+            reloadTimer = null;
+        }
+        synchronized (layers) {
+            if (active) {
+                active = false;
+                if (--activeInstances == 0) {
+                    layers.clear();
+                    mergedLayersCache.clear();
                 }
-                tempLocations.add(res.createRelative(basename + "-" + hostName + "." + extension));
-            }
-            
-            List<Resource> newLocations = new ArrayList<Resource>();
-            for (Resource r : tempLocations) {
-                // Make sure we add a location only once.
-                if (!newLocations.contains(r)) {
-                    newLocations.add(r);
+            }
+        }
+    }
+    
+    private void startReloadTimer() throws IOException {
+        lastProperties = mergeProperties();
+        convertProperties(lastProperties);
+        reloadTimer = new Timer("HostNameBasedPropertyPlaceHolderConfigurer reloader", true);
+        reloadTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    reload();
+                } catch (Throwable t) {
+                    log.error("Failed to reload properties: " + t.getMessage(), t);
                 }
             }
-            super.setLocations(newLocations.toArray(new Resource[0]));
-            
+        }, reloadInterval, reloadInterval);
+    }
+    
+    @Override
+    public void postProcessBeanFactory(
+            ConfigurableListableBeanFactory beanFactory) throws BeansException {
+
+        synchronized (layers) {
+            if (!active) {
+                active = true;
+                activeInstances++;
+            }
+        }
+        try {
+            resolvedLocations = HostNameLocationResolver.getInstance(getHostName(), 
+                    hostNameFilters).resolve(locations);
+            super.setLocations(resolvedLocations);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }        
         
         super.postProcessBeanFactory(beanFactory);
+        
+        if (reloadable && reloadTimer == null) {
+            this.beanFactory = beanFactory;
+            try {
+                startReloadTimer();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
     }
     
     @Override
@@ -173,29 +492,98 @@ public class HostNameBasedPropertyPlaceHolderConfigurer extends
     }
     
     protected String getFullHostName() {
-        try {
-            return InetAddress.getLocalHost().getHostName();
-        } catch (UnknownHostException uhe) {
-            log.warn("Could not determine the name for the current host. Using 'localhost'.");
-        }
-        return "localhost";
+        return HostIdentity.getFullHostName();
     }
     
     protected String getHostName() {
-        String hostName = getFullHostName();
-        int dotIndex = hostName.indexOf('.');
-        if (dotIndex != -1) {
-            hostName = hostName.substring(0, dotIndex);
+        return HostIdentity.getShortHostName(getFullHostName());
+    }
+    
+    /**
+     * A loaded properties file and the time it was last modified.
+     */
+    private static class Layer {
+        private final File file;
+        private final long lastModified;
+        private final String fileEncoding;
+        private final Properties properties = new Properties();
+        public Layer(Resource location, String fileEncoding) {
+            this.fileEncoding = fileEncoding;
+            File f = null;
+            try {
+                f = location.getFile();
+            } catch (IOException e) {
+                // Not in the file system. Can't be checked for modifications.
+            }
+            this.file = f;
+            this.lastModified = f != null ? f.lastModified() : 0;
+        }
+        public boolean isModified(String encoding) {
+            if (fileEncoding == null ? encoding != null : !fileEncoding.equals(encoding)) {
+                return true;
+            }
+            return file != null && file.lastModified() != lastModified;
+        }
+    }
+    
+    /**
+     * The settings which affect how a properties file is loaded. Files are
+     * only shared between configurers with equal settings.
+     */
+    private static class LoadSettings {
+        private final String fileEncoding;
+        private final Class<?> persisterClass;
+        private final boolean ignoreResourceNotFound;
+        public LoadSettings(String fileEncoding, Class<?> persisterClass, boolean ignoreResourceNotFound) {
+            this.fileEncoding = fileEncoding;
+            this.persisterClass = persisterClass;
+            this.ignoreResourceNotFound = ignoreResourceNotFound;
+        }
+        public List<Object> key(Resource location) {
+            return Arrays.asList(new Object[] {this, location});
+        }
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof LoadSettings)) {
+                return false;
+            }
+            LoadSettings that = (LoadSettings) o;
+            return (fileEncoding == null ? that.fileEncoding == null : fileEncoding.equals(that.fileEncoding))
+                && persisterClass == that.persisterClass 
+                && ignoreResourceNotFound == that.ignoreResourceNotFound;
+        }
+        @Override
+        public int hashCode() {
+            return (fileEncoding == null ? 0 : fileEncoding.hashCode()) * 31 
+                + persisterClass.hashCode() + (ignoreResourceNotFound ? 1 : 0);
+        }
+    }
+    
+    /**
+     * The merged properties of a number of {@link Layer}s.
+     */
+    private static class MergedLayers {
+        private final Layer[] layers;
+        private final Properties properties = new Properties();
+        public MergedLayers(Layer[] layers) {
+            this.layers = layers;
+            for (Layer layer : layers) {
+                properties.putAll(layer.properties);
+            }
         }
-        return hostName;
     }
     
     public static class Filter {
         private final String pattern;
         private final String replacement;
+        private final Pattern compiledPattern;
         public Filter(String pattern, String replacement) {
             this.pattern = pattern;
             this.replacement = replacement;
+            this.compiledPattern = Pattern.compile(pattern);
+        }
+        public String apply(String hostName) {
+            return compiledPattern.matcher(hostName).replaceAll(replacement);
         }
         public String getPattern() {
             return pattern;
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies.spring;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.core.io.Resource;
+
+import se.trillian.goodies.spring.HostNameBasedPropertyPlaceHolderConfigurer.Filter;
+
+/**
+ * Expands locations into the host name specific locations used by
+ * {@link HostNameBasedPropertyPlaceHolderConfigurer}. The host name filters
+ * are applied once when the resolver is created and the expanded locations
+ * are remembered. Use {@link #getInstance(String, List)} to share resolvers
+ * between all configurers in the JVM using the same host name and filters.
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+public class HostNameLocationResolver {
+
+    private static final ConcurrentMap<String, HostNameLocationResolver> instances =
+        new ConcurrentHashMap<String, HostNameLocationResolver>();
+
+    private final List<String> suffixes;
+    private final ConcurrentMap<List<Resource>, Resource[]> resolved =
+        new ConcurrentHashMap<List<Resource>, Resource[]>();
+
+    /**
+     * Creates a new resolver.
+     *
+     * @param hostName the host name.
+     * @param filters the host name filters.
+     */
+    public HostNameLocationResolver(String hostName, List<Filter> filters) {
+        Set<String> hostNames = new LinkedHashSet<String>();
+        for (Filter f : filters) {
+            String filteredHostName = f.apply(hostName);
+            if (!filteredHostName.equals(hostName)) {
+                hostNames.add(filteredHostName);
+            }
+        }
+        hostNames.add(hostName);
+
+        List<String> s = new ArrayList<String>();
+        s.add("-defaults");
+        for (String h : hostNames) {
+            s.add("-defaults-" + h);
+        }
+        s.add("");
+        for (String h : hostNames) {
+            s.add("-" + h);
+        }
+        this.suffixes = Collections.unmodifiableList(s);
+    }
+
+    /**
+     * Returns a shared resolver for the specified host name and filters.
+     */
+    public static HostNameLocationResolver getInstance(String hostName, List<Filter> filters) {
+        StringBuilder key = new StringBuilder(hostName);
+        for (Filter f : filters) {
+            key.append('\n').append(f.getPattern()).append("=>").append(f.getReplacement());
+        }
+        HostNameLocationResolver resolver = instances.get(key.toString());
+        if (resolver == null) {
+            resolver = new HostNameLocationResolver(hostName, filters);
+            HostNameLocationResolver existing = instances.putIfAbsent(key.toString(), resolver);
+            if (existing != null) {
+                resolver = existing;
+            }
+        }
+        return resolver;
+    }
+
+    /**
+     * Returns the suffixes which will be inserted before the extension of each
+     * location in the order they will be loaded.
+     */
+    public List<String> getSuffixes() {
+        return suffixes;
+    }
+
+    /**
+     * Expands the specified locations. Locations occurring more than once will
+     * only be included the first time.
+     *
+     * @param locations the locations to expand.
+     * @return the expanded locations.
+     */
+    public Resource[] resolve(Resource[] locations) throws IOException {
+        List<Resource> key = Arrays.asList(locations.clone());
+        Resource[] result = resolved.get(key);
+        if (result == null) {
+            Set<Resource> newLocations = new LinkedHashSet<Resource>();
+            for (Resource res : locations) {
+                String basename = res.getFilename();
+                String extension = "";
+                int index = basename.lastIndexOf('.');
+                if (index != -1) {
+                    extension = basename.substring(index + 1);
+                    basename = basename.substring(0, index);
+                }
+                for (String suffix : suffixes) {
+                    newLocations.add(res.createRelative(basename + suffix + "." + extension));
+                }
+            }
+            result = newLocations.toArray(new Resource[newLocations.size()]);
+            resolved.putIfAbsent(key, result);
+        }
+        return result.clone();
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies.spring;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Keeps track of the startup phase of an {@link ApplicationLauncher} and
+ * reports liveness, readiness and runtime statistics. The application is
+ * ready when it is in the {@link #RUNNING} phase and all
+ * {@link ReadinessCheck} singletons in the context report that they are
+ * ready. It is alive until it has been {@link #STOPPED}.
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+public class LauncherStatus implements LauncherStatusMBean {
+    private static final Logger log = LoggerFactory.getLogger(LauncherStatus.class);
+
+    public static final String STARTING = "STARTING";
+    public static final String REFRESHING = "REFRESHING";
+    public static final String WARMING_UP = "WARMING_UP";
+    public static final String RUNNING = "RUNNING";
+    public static final String STOPPING = "STOPPING";
+    public static final String STOPPED = "STOPPED";
+    public static final String FAILED = "FAILED";
+
+    private volatile String phase = STARTING;
+    private volatile ConfigurableApplicationContext context = null;
+    private volatile Map<String, ReadinessCheck> readinessChecks = null;
+
+    public String getPhase() {
+        return phase;
+    }
+
+    public void setPhase(String phase) {
+        log.info("Entering phase " + phase);
+        this.phase = phase;
+    }
+
+    /**
+     * Sets the refreshed context which will be searched for
+     * {@link ReadinessCheck} beans.
+     */
+    public void setContext(ConfigurableApplicationContext context) {
+        this.context = context;
+        this.readinessChecks = null;
+    }
+
+    public boolean isRefreshed() {
+        ConfigurableApplicationContext context = this.context;
+        return context != null && context.isActive();
+    }
+
+    public boolean isAlive() {
+        String phase = this.phase;
+        return !STOPPED.equals(phase) && !FAILED.equals(phase);
+    }
+
+    @SuppressWarnings("unchecked")
+    public boolean isReady() {
+        ConfigurableApplicationContext context = this.context;
+        if (!RUNNING.equals(phase) || context == null || !context.isActive()) {
+            return false;
+        }
+        Map<String, ReadinessCheck> checks = readinessChecks;
+        if (checks == null) {
+            checks = context.getBeansOfType(ReadinessCheck.class, false, false);
+            readinessChecks = checks;
+        }
+        for (Map.Entry<String, ReadinessCheck> entry : checks.entrySet()) {
+            try {
+                if (!entry.getValue().isReady()) {
+                    return false;
+                }
+            } catch (RuntimeException e) {
+                log.warn("Readiness check '" + entry.getKey() + "' failed", e);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long getUptime() {
+        return ManagementFactory.getRuntimeMXBean().getUptime();
+    }
+
+    public long getHeapUsed() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    public long getHeapMax() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getMax();
+    }
+
+    public long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    public long getGcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+
+    public int getThreadCount() {
+        return ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+
+    public int getPeakThreadCount() {
+        return ManagementFactory.getThreadMXBean().getPeakThreadCount();
+    }
+
+    /**
+     * Returns all status values as <code>name=value</code> lines.
+     */
+    public String getStats() {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        StringBuilder sb = new StringBuilder();
+        sb.append("phase=").append(getPhase()).append('\n');
+        sb.append("refreshed=").append(isRefreshed()).append('\n');
+        sb.append("alive=").append(isAlive()).append('\n');
+        sb.append("ready=").append(isReady()).append('\n');
+        sb.append("uptime=").append(getUptime()).append('\n');
+        sb.append("heap.used=").append(heap.getUsed()).append('\n');
+        sb.append("heap.committed=").append(heap.getCommitted()).append('\n');
+        sb.append("heap.max=").append(heap.getMax()).append('\n');
+        sb.append("gc.count=").append(getGcCount()).append('\n');
+        sb.append("gc.time=").append(getGcTime()).append('\n');
+        sb.append("threads=").append(getThreadCount()).append('\n');
+        sb.append("threads.peak=").append(getPeakThreadCount()).append('\n');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies.spring;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Minimal HTTP server exposing a {@link LauncherStatus}. Connections are
+ * accepted by a single daemon thread and handled by a small pool of daemon
+ * threads so a slow or idle client can't hold up other probes. The handler
+ * threads are only started when needed and exit after being idle for a
+ * minute. Connections which arrive while all handler threads are busy are
+ * closed immediately. The following paths are 
+ * supported:
+ * <ul>
+ *   <li><code>/live</code> &ndash; <code>200</code> if alive,
+ *   <code>503</code> otherwise,</li>
+ *   <li><code>/ready</code> &ndash; <code>200</code> if ready,
+ *   <code>503</code> otherwise,</li>
+ *   <li><code>/stats</code> &ndash; {@link LauncherStatus#getStats()} as
+ *   <code>text/plain</code>.</li>
+ * </ul>
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+public class LauncherStatusServer implements Runnable {
+    private static final Logger log = LoggerFactory.getLogger(LauncherStatusServer.class);
+
+    private static final int SO_TIMEOUT = 1000;
+    private static final int MAX_HANDLER_THREADS = 8;
+
+    private final LauncherStatus status;
+    private final ServerSocket serverSocket;
+    private final ThreadPoolExecutor handlers;
+    private final Thread thread;
+
+    /**
+     * Creates a new instance and starts listening on the specified port.
+     *
+     * @param status the status to expose.
+     * @param port the port. Use <code>0</code> for any free port.
+     * @throws IOException if the port cannot be bound.
+     */
+    public LauncherStatusServer(LauncherStatus status, int port) throws IOException {
+        this.status = status;
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.setReuseAddress(true);
+        this.serverSocket.bind(new InetSocketAddress(port));
+        // No core threads since allowCoreThreadTimeOut() requires Java 6
+        this.handlers = new ThreadPoolExecutor(0, MAX_HANDLER_THREADS, 
+                60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "LauncherStatusServer handler #" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        this.thread = new Thread(this, "LauncherStatusServer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+        log.info("Status server listening on port " + getPort());
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Stops listening.
+     */
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+        }
+        handlers.shutdownNow();
+    }
+
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                // Closed
+                continue;
+            }
+            try {
+                handlers.execute(new Runnable() {
+                    public void run() {
+                        handleAndClose(socket);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                log.debug("Too many status requests. Closing connection.");
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    private void handleAndClose(Socket socket) {
+        try {
+            socket.setSoTimeout(SO_TIMEOUT);
+            handle(socket);
+        } catch (SocketException e) {
+            // Closed
+        } catch (IOException e) {
+            log.debug("Failed to handle status request", e);
+        } catch (RuntimeException e) {
+            log.warn("Failed to handle status request", e);
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private void handle(Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+        String requestLine = in.readLine();
+        if (requestLine == null) {
+            return;
+        }
+        String line;
+        while ((line = in.readLine()) != null && line.length() > 0) {
+            // Skip headers
+        }
+
+        String[] parts = requestLine.split(" ");
+        String path = parts.length > 1 ? parts[1] : "";
+        int query = path.indexOf('?');
+        if (query != -1) {
+            path = path.substring(0, query);
+        }
+
+        if ("/live".equals(path)) {
+            boolean alive = status.isAlive();
+            respond(socket, alive ? 200 : 503, alive ? "OK\n" : status.getPhase() + "\n");
+        } else if ("/ready".equals(path)) {
+            boolean ready = status.isReady();
+            respond(socket, ready ? 200 : 503, ready ? "OK\n" : status.getPhase() + "\n");
+        } else if ("/stats".equals(path)) {
+            respond(socket, 200, status.getStats());
+        } else {
+            respond(socket, 404, "Not Found\n");
+        }
+    }
+
+    private void respond(Socket socket, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        String reason = code == 200 ? "OK" : code == 404 ? "Not Found" : "Service Unavailable";
+        String header = "HTTP/1.0 " + code + " " + reason + "\r\n"
+            + "Content-Type: text/plain; charset=UTF-8\r\n"
+            + "Content-Length: " + bytes.length + "\r\n"
+            + "Cache-Control: no-cache\r\n"
+            + "Connection: close\r\n\r\n";
+        OutputStream out = socket.getOutputStream();
+        out.write(header.getBytes("ISO-8859-1"));
+        out.write(bytes);
+        out.flush();
+    }
+}
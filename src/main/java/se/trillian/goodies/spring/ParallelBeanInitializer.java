@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies.spring;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.BeanInitializationException;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+
+/**
+ * Calls {@link ParallelInitializingBean#initialize()} on all
+ * {@link ParallelInitializingBean} singletons in a bean factory using a
+ * bounded number of threads. A bean is initialized once all
+ * {@link ParallelInitializingBean}s it (directly or indirectly) depends on
+ * have been initialized. Beans with circular dependencies are initialized
+ * one at a time in the calling thread.
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+public class ParallelBeanInitializer {
+    private static final Logger log = LoggerFactory.getLogger(ParallelBeanInitializer.class);
+
+    private final ConfigurableListableBeanFactory beanFactory;
+    private final int threads;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param beanFactory the bean factory.
+     * @param threads the maximum number of beans to initialize concurrently.
+     */
+    public ParallelBeanInitializer(ConfigurableListableBeanFactory beanFactory, int threads) {
+        this.beanFactory = beanFactory;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Initializes the beans.
+     *
+     * @return the time in milliseconds it took to initialize each bean, in the
+     *         order they were initialized.
+     * @throws BeanInitializationException if any of the beans fails.
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Long> initialize() throws BeanInitializationException {
+        final Map<String, ParallelInitializingBean> beans =
+            beanFactory.getBeansOfType(ParallelInitializingBean.class, false, false);
+        final Map<String, Long> timings = new LinkedHashMap<String, Long>();
+        if (beans.isEmpty()) {
+            return timings;
+        }
+
+        Map<String, Set<String>> dependencies = new HashMap<String, Set<String>>();
+        for (String name : beans.keySet()) {
+            Set<String> deps = new HashSet<String>();
+            collectDependencies(name, beans.keySet(), new HashSet<String>(), deps);
+            deps.remove(name);
+            dependencies.put(name, deps);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, beans.size()),
+                new ThreadFactory() {
+                    private final AtomicInteger threadCount = new AtomicInteger();
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "ParallelBeanInitializer #" + threadCount.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        try {
+            CompletionService<String> completionService = new ExecutorCompletionService<String>(executor);
+            Set<String> done = new HashSet<String>();
+            int running = 0;
+            while (done.size() < beans.size()) {
+                for (Map.Entry<String, Set<String>> entry : dependencies.entrySet()) {
+                    if (entry.getValue() != null && done.containsAll(entry.getValue())) {
+                        final String name = entry.getKey();
+                        entry.setValue(null);
+                        completionService.submit(new Callable<String>() {
+                            public String call() throws Exception {
+                                return initialize(name, beans.get(name), timings);
+                            }
+                        });
+                        running++;
+                    }
+                }
+                if (running == 0) {
+                    // Circular dependencies. Initialize what's left one at a time.
+                    for (Map.Entry<String, Set<String>> entry : dependencies.entrySet()) {
+                        if (entry.getValue() != null) {
+                            String name = entry.getKey();
+                            entry.setValue(null);
+                            done.add(initialize(name, beans.get(name), timings));
+                        }
+                    }
+                    continue;
+                }
+                try {
+                    done.add(completionService.take().get());
+                    running--;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new BeanInitializationException("Interrupted while initializing beans");
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof BeanInitializationException) {
+                        throw (BeanInitializationException) e.getCause();
+                    }
+                    throw new BeanInitializationException(e.getCause().getMessage(), e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return timings;
+    }
+
+    private String initialize(String name, ParallelInitializingBean bean, Map<String, Long> timings) {
+        long start = System.currentTimeMillis();
+        try {
+            bean.initialize();
+        } catch (Exception e) {
+            throw new BeanInitializationException("Failed to initialize bean '" + name + "'", e);
+        }
+        long time = System.currentTimeMillis() - start;
+        if (log.isDebugEnabled()) {
+            log.debug("Initialized bean '" + name + "' in " + time + " ms");
+        }
+        synchronized (timings) {
+            timings.put(name, time);
+        }
+        return name;
+    }
+
+    private void collectDependencies(String name, Set<String> candidates, Set<String> visited,
+            Set<String> result) {
+
+        if (!visited.add(name)) {
+            return;
+        }
+        for (String dep : beanFactory.getDependenciesForBean(name)) {
+            if (candidates.contains(dep)) {
+                result.add(dep);
+            }
+            collectDependencies(dep, candidates, visited, result);
+        }
+    }
+}
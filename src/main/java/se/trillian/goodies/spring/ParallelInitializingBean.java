@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies.spring;
+
+/**
+ * Interface implemented by singleton beans which have slow initialization
+ * which can be run concurrently with the initialization of other beans.
+ * {@link ParallelBeanInitializer} calls {@link #initialize()} on all such
+ * beans after all singletons have been created. A bean will not be
+ * initialized until the {@link ParallelInitializingBean}s it depends on have
+ * been initialized.
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+public interface ParallelInitializingBean {
+    /**
+     * Performs the slow part of the initialization of this bean. May be
+     * called from any thread.
+     */
+    void initialize() throws Exception;
+}
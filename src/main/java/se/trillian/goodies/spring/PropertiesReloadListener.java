@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies.spring;
+
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Callback interface notified by a reloadable
+ * {@link HostNameBasedPropertyPlaceHolderConfigurer} when any of the
+ * properties files it has loaded have changed. Singleton beans implementing
+ * this interface in the same bean factory as the configurer will be notified
+ * automatically.
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+public interface PropertiesReloadListener {
+    /**
+     * Called after the properties have been reloaded.
+     *
+     * @param properties the new merged properties.
+     * @param changedKeys the keys of the properties which have been added,
+     *        removed or changed.
+     */
+    void propertiesReloaded(Properties properties, Set<String> changedKeys);
+}
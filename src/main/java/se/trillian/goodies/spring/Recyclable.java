@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies.spring;
+
+/**
+ * Interface implemented by domain object implementation classes which can
+ * be recycled by factories created by {@link DomainObjectFactoryFactoryBean}
+ * when its <code>recycling</code> property is set. Instances returned to the
+ * factory using a <code>release</code> factory method will be reused by
+ * later calls to the factory's <code>create</code> methods.
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+public interface Recyclable {
+    /**
+     * Reinitializes a recycled instance. Must leave the object in the same
+     * state as the constructor which would have been called with the same
+     * arguments.
+     *
+     * @param args the constructor arguments, i.e. the factory method 
+     *        arguments followed by the injected dependencies.
+     */
+    void reset(Object[] args);
+}
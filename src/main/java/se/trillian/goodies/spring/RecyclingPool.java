@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies.spring;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of recycled objects used by
+ * {@link DomainObjectFactoryFactoryBean}. Each thread keeps a small cache of
+ * the objects it has released which it acquires from first without any
+ * locking. Objects released when the thread's cache is full go to a single
+ * shared list which threads fall back to when their cache is empty. The
+ * objects in the thread caches count against the size of the pool and
+ * objects released when the pool is full are dropped, so the pool never
+ * holds more than the specified number of objects.
+ * <p>
+ * Releasing an object twice is detected if it is still in the releasing
+ * thread's cache or in the shared list. An object released twice by
+ * different threads without being acquired in between goes undetected.
+ * </p>
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+class RecyclingPool {
+    private static final int MAX_LOCAL_SIZE = 8;
+
+    private final Class<?> type;
+    private final int size;
+    private final int localSize;
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final ArrayList<Object> shared = new ArrayList<Object>();
+    private final IdentityHashMap<Object, Boolean> sharedMembers = new IdentityHashMap<Object, Boolean>();
+    private final ThreadLocal<Local> locals = new ThreadLocal<Local>() {
+        @Override
+        protected Local initialValue() {
+            return new Local();
+        }
+    };
+
+    /**
+     * Creates a new pool.
+     *
+     * @param type the type of the pooled objects.
+     * @param size the maximum number of pooled objects.
+     */
+    public RecyclingPool(Class<?> type, int size) {
+        this.type = type;
+        this.size = Math.max(0, size);
+        this.localSize = Math.min(MAX_LOCAL_SIZE, this.size);
+    }
+
+    /**
+     * Returns a pooled object or <code>null</code> if the pool is empty.
+     */
+    public Object acquire() {
+        Object o = locals.get().poll();
+        if (o == null) {
+            synchronized (shared) {
+                if (shared.isEmpty()) {
+                    return null;
+                }
+                o = shared.remove(shared.size() - 1);
+                sharedMembers.remove(o);
+            }
+        }
+        pooled.decrementAndGet();
+        return o;
+    }
+
+    /**
+     * Returns an object to the pool.
+     *
+     * @throws IllegalArgumentException if the object isn't of the pooled
+     *         type.
+     * @throws IllegalStateException if the object is already in the pool.
+     */
+    public void release(Object o) {
+        if (!type.isInstance(o)) {
+            throw new IllegalArgumentException("Cannot release object of type "
+                    + o.getClass().getName() + ". Expected " + type.getName() + ".");
+        }
+        Local local = locals.get();
+        if (local.contains(o)) {
+            throw new IllegalStateException("Object " + o + " has already been released");
+        }
+        if (!local.isFull()) {
+            if (reserve()) {
+                local.add(o);
+            }
+            return;
+        }
+        synchronized (shared) {
+            if (sharedMembers.containsKey(o)) {
+                throw new IllegalStateException("Object " + o + " has already been released");
+            }
+            if (reserve()) {
+                shared.add(o);
+                sharedMembers.put(o, Boolean.TRUE);
+            }
+        }
+    }
+
+    /**
+     * Counts a released object against the size of the pool. Returns
+     * <code>false</code> if the pool is full.
+     */
+    private boolean reserve() {
+        while (true) {
+            int n = pooled.get();
+            if (n >= size) {
+                return false;
+            }
+            if (pooled.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * The objects cached by a single thread.
+     */
+    private class Local {
+        private final Object[] objects = new Object[localSize];
+        private int count = 0;
+
+        Object poll() {
+            if (count == 0) {
+                return null;
+            }
+            Object o = objects[--count];
+            objects[count] = null;
+            return o;
+        }
+
+        boolean isFull() {
+            return count == objects.length;
+        }
+
+        void add(Object o) {
+            objects[count++] = o;
+        }
+
+        boolean contains(Object o) {
+            for (int i = 0; i < count; i++) {
+                if (objects[i] == o) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Gives the space used by the objects cached by a terminated thread
+         * back to the pool.
+         */
+        @Override
+        protected void finalize() throws Throwable {
+            pooled.addAndGet(-count);
+            super.finalize();
+        }
+    }
+}
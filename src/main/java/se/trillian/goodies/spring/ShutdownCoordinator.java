@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies.spring;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Status;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+/**
+ * Shuts down a {@link ConfigurableApplicationContext} in phases:
+ * <ol>
+ *   <li><em>stop</em> &ndash; stops all <code>Lifecycle</code> beans and
+ *   shuts down all {@link ExecutorService} and {@link ThreadPoolTaskExecutor}
+ *   beans so that no new work is accepted,</li>
+ *   <li><em>drain</em> &ndash; waits for the executors and all
+ *   {@link Drainable} beans to complete their queued work,</li>
+ *   <li><em>flush logging</em> &ndash; logs the time spent so far and runs
+ *   the logging flusher, if any,</li>
+ *   <li><em>close</em> &ndash; closes the context and then shuts down all
+ *   ehcache {@link CacheManager} beans which are still alive, which flushes
+ *   their replication queues. The caches are thus still available to 
+ *   <code>destroy</code> methods.</li>
+ * </ol>
+ * All phases share a single deadline. Work still pending when the deadline
+ * has passed is abandoned and the context is closed anyway. The cache 
+ * managers are shut down even if the shutdown is interrupted. Since nothing
+ * can be logged once the logging flusher has been run the outcome of the
+ * <em>close</em> phase is then reported on <code>System.err</code>.
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+public class ShutdownCoordinator {
+    private static final Logger log = LoggerFactory.getLogger(ShutdownCoordinator.class);
+
+    private final ConfigurableApplicationContext context;
+    private final long timeoutMillis;
+    private final Runnable loggingFlusher;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param context the context to shut down.
+     * @param timeoutMillis the maximum number of milliseconds the whole
+     *        shutdown may take.
+     * @param loggingFlusher flushes and stops asynchronous logging. May be
+     *        <code>null</code>. Nothing will be logged after it has been run.
+     */
+    public ShutdownCoordinator(ConfigurableApplicationContext context, long timeoutMillis,
+            Runnable loggingFlusher) {
+        this.context = context;
+        this.timeoutMillis = timeoutMillis;
+        this.loggingFlusher = loggingFlusher;
+    }
+
+    /**
+     * Shuts down the context.
+     *
+     * @return the time in milliseconds spent in each phase, in phase order.
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Long> shutdown() {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        Map<String, Long> timings = new LinkedHashMap<String, Long>();
+
+        Map<String, CacheManager> cacheManagers = 
+            context.getBeansOfType(CacheManager.class, false, false);
+        try {
+            Map<String, ExecutorService> executors = getExecutors();
+            long start = System.currentTimeMillis();
+            stop(executors);
+            timings.put("stop", System.currentTimeMillis() - start);
+            log.info("Stopped accepting work in " + timings.get("stop") + " ms");
+    
+            start = System.currentTimeMillis();
+            boolean drained = drain(executors, deadline);
+            timings.put("drain", System.currentTimeMillis() - start);
+            if (drained) {
+                log.info("Drained queued work in " + timings.get("drain") + " ms");
+            } else {
+                log.warn("Failed to drain all queued work within " + timeoutMillis + " ms");
+            }
+    
+            start = System.currentTimeMillis();
+            log.info("Closing context. Shutdown phases so far (ms): " + timings);
+            if (loggingFlusher != null) {
+                loggingFlusher.run();
+            }
+            timings.put("flushLogging", System.currentTimeMillis() - start);
+    
+            // Nothing is logged from here on if the logging flusher has been run
+            start = System.currentTimeMillis();
+            boolean closed = close(deadline);
+            timings.put("close", System.currentTimeMillis() - start);
+            if (closed) {
+                report(false, "Closed context in " + timings.get("close") + " ms");
+            } else {
+                report(true, "Context failed to close within " + timeoutMillis + " ms");
+            }
+        } finally {
+            shutdownCacheManagers(cacheManagers);
+        }
+        return timings;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, ExecutorService> getExecutors() {
+        Map<String, ExecutorService> executors = new LinkedHashMap<String, ExecutorService>();
+        executors.putAll(context.getBeansOfType(ExecutorService.class, false, false));
+        Map<String, ThreadPoolTaskExecutor> taskExecutors =
+            context.getBeansOfType(ThreadPoolTaskExecutor.class, false, false);
+        for (Map.Entry<String, ThreadPoolTaskExecutor> entry : taskExecutors.entrySet()) {
+            try {
+                executors.put(entry.getKey(), entry.getValue().getThreadPoolExecutor());
+            } catch (IllegalStateException e) {
+                // Not initialized. Nothing to drain.
+            }
+        }
+        return executors;
+    }
+
+    private void stop(Map<String, ExecutorService> executors) {
+        try {
+            context.stop();
+        } catch (Exception e) {
+            log.warn("Failed to stop Lifecycle beans", e);
+        }
+        for (Map.Entry<String, ExecutorService> entry : executors.entrySet()) {
+            try {
+                entry.getValue().shutdown();
+            } catch (Exception e) {
+                log.warn("Failed to shut down executor '" + entry.getKey() + "'", e);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean drain(Map<String, ExecutorService> executors, long deadline) {
+        boolean drained = true;
+        try {
+            for (Map.Entry<String, ExecutorService> entry : executors.entrySet()) {
+                if (!entry.getValue().awaitTermination(remaining(deadline), TimeUnit.MILLISECONDS)) {
+                    log.warn("Executor '" + entry.getKey() + "' failed to terminate in time");
+                    entry.getValue().shutdownNow();
+                    drained = false;
+                }
+            }
+            Map<String, Drainable> drainables = context.getBeansOfType(Drainable.class, false, false);
+            for (Map.Entry<String, Drainable> entry : drainables.entrySet()) {
+                try {
+                    if (!entry.getValue().drain(remaining(deadline))) {
+                        log.warn("Bean '" + entry.getKey() + "' failed to drain in time");
+                        drained = false;
+                    }
+                } catch (RuntimeException e) {
+                    log.warn("Failed to drain bean '" + entry.getKey() + "'", e);
+                    drained = false;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return drained;
+    }
+
+    private void shutdownCacheManagers(Map<String, CacheManager> cacheManagers) {
+        for (Map.Entry<String, CacheManager> entry : cacheManagers.entrySet()) {
+            try {
+                if (entry.getValue().getStatus() == Status.STATUS_ALIVE) {
+                    entry.getValue().shutdown();
+                }
+            } catch (Exception e) {
+                log.warn("Failed to shut down CacheManager '" + entry.getKey() + "'", e);
+            }
+        }
+    }
+
+    private boolean close(long deadline) {
+        Thread closer = new Thread("ShutdownCoordinator") {
+            public void run() {
+                context.close();
+            }
+        };
+        closer.setDaemon(true);
+        closer.start();
+        try {
+            closer.join(Math.max(1, remaining(deadline)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !closer.isAlive();
+    }
+
+    /**
+     * Logs the message or, if the logging flusher has been run, prints it
+     * on <code>System.err</code>.
+     */
+    private void report(boolean warn, String message) {
+        if (loggingFlusher != null) {
+            System.err.println((warn ? "WARN " : "INFO ") + ShutdownCoordinator.class.getName() 
+                    + " - " + message);
+        } else if (warn) {
+            log.warn(message);
+        } else {
+            log.info(message);
+        }
+    }
+
+    private static long remaining(long deadline) {
+        return Math.max(0, deadline - System.currentTimeMillis());
+    }
+}
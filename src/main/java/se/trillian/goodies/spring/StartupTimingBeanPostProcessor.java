@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies.spring;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.beans.factory.config.InstantiationAwareBeanPostProcessorAdapter;
+
+/**
+ * {@link BeanPostProcessor} which measures the time it takes to create each
+ * bean. The total time of a bean includes the time it took to create the
+ * beans it depends on while the self time excludes it. Should be registered
+ * before any other {@link BeanPostProcessor}s. Call {@link #stop()} when the
+ * context has been refreshed to stop measuring.
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+public class StartupTimingBeanPostProcessor extends InstantiationAwareBeanPostProcessorAdapter {
+
+    private final ThreadLocal<LinkedList<Frame>> frames = new ThreadLocal<LinkedList<Frame>>() {
+        @Override
+        protected LinkedList<Frame> initialValue() {
+            return new LinkedList<Frame>();
+        }
+    };
+    private final List<Timing> timings = new ArrayList<Timing>();
+    private volatile boolean stopped = false;
+
+    @Override
+    @SuppressWarnings("rawtypes") // Raw in the overridden method
+    public Object postProcessBeforeInstantiation(Class beanClass, String beanName) throws BeansException {
+        if (!stopped) {
+            frames.get().addFirst(new Frame(beanName));
+        }
+        return null;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+        LinkedList<Frame> stack = frames.get();
+        int index = indexOf(stack, beanName);
+        if (index == -1) {
+            // Object created by a FactoryBean or the bean was created before we started
+            return bean;
+        }
+        // Frames above the bean's own frame belong to beans which failed to 
+        // be created. Keep the time of the beans they did create.
+        for (int i = 0; i < index; i++) {
+            Frame failed = stack.removeFirst();
+            stack.getFirst().children += failed.children;
+        }
+        Frame frame = stack.removeFirst();
+        long total = System.nanoTime() - frame.start;
+        if (!stack.isEmpty()) {
+            stack.getFirst().children += total;
+        }
+        synchronized (timings) {
+            timings.add(new Timing(beanName, total / 1000000, (total - frame.children) / 1000000));
+        }
+        return bean;
+    }
+
+    private static int indexOf(List<Frame> stack, String beanName) {
+        int i = 0;
+        for (Frame frame : stack) {
+            if (frame.beanName.equals(beanName)) {
+                return i;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    /**
+     * Stops measuring.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Returns the measured timings sorted on self time in descending order.
+     */
+    public List<Timing> getTimings() {
+        List<Timing> result;
+        synchronized (timings) {
+            result = new ArrayList<Timing>(timings);
+        }
+        Collections.sort(result, new Comparator<Timing>() {
+            public int compare(Timing t1, Timing t2) {
+                if (t1.selfMillis != t2.selfMillis) {
+                    return t1.selfMillis > t2.selfMillis ? -1 : 1;
+                }
+                return t1.beanName.compareTo(t2.beanName);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Writes the timings to the specified file, one bean per line.
+     */
+    public void writeReport(File file) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            out.println("# self-ms total-ms bean");
+            for (Timing t : getTimings()) {
+                out.println(t);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static class Frame {
+        private final String beanName;
+        private final long start = System.nanoTime();
+        private long children;
+        public Frame(String beanName) {
+            this.beanName = beanName;
+        }
+    }
+
+    /**
+     * The time it took to create a single bean.
+     */
+    public static class Timing {
+        private final String beanName;
+        private final long totalMillis;
+        private final long selfMillis;
+        public Timing(String beanName, long totalMillis, long selfMillis) {
+            this.beanName = beanName;
+            this.totalMillis = totalMillis;
+            this.selfMillis = selfMillis;
+        }
+        public String getBeanName() {
+            return beanName;
+        }
+        public long getTotalMillis() {
+            return totalMillis;
+        }
+        public long getSelfMillis() {
+            return selfMillis;
+        }
+        @Override
+        public String toString() {
+            return selfMillis + " " + totalMillis + " " + beanName;
+        }
+    }
+}
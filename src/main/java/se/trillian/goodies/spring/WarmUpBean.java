@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies.spring;
+
+/**
+ * Interface implemented by singleton beans which can warm up their hot code
+ * paths, e.g. by running DAO, cache and serialization code with synthetic
+ * input, before the application starts receiving traffic. 
+ * {@link WarmUpRunner} calls {@link #warmUp()} on all such beans
+ * concurrently once the context has been refreshed.
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+public interface WarmUpBean {
+    /**
+     * Warms up this bean. May be called from any thread. Should return 
+     * promptly when the calling thread is interrupted.
+     */
+    void warmUp() throws Exception;
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies.spring;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ListableBeanFactory;
+
+/**
+ * Calls {@link WarmUpBean#warmUp()} on all {@link WarmUpBean} singletons in
+ * a bean factory using a bounded number of threads. Warm-ups still running
+ * when the time budget has been spent are interrupted and abandoned. A
+ * failing warm-up is logged but doesn't affect the other warm-ups. The 
+ * names of the failed beans are available from {@link #getFailed()}.
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+public class WarmUpRunner {
+    private static final Logger log = LoggerFactory.getLogger(WarmUpRunner.class);
+
+    private final ListableBeanFactory beanFactory;
+    private final int threads;
+    private final long budgetMillis;
+    private final Set<String> failed = new LinkedHashSet<String>();
+
+    /**
+     * Creates a new instance.
+     *
+     * @param beanFactory the bean factory.
+     * @param threads the maximum number of beans to warm up concurrently.
+     * @param budgetMillis the maximum number of milliseconds to spend.
+     */
+    public WarmUpRunner(ListableBeanFactory beanFactory, int threads, long budgetMillis) {
+        this.beanFactory = beanFactory;
+        this.threads = Math.max(1, threads);
+        this.budgetMillis = budgetMillis;
+    }
+
+    /**
+     * Warms up the beans.
+     *
+     * @return the time in milliseconds it took to warm up each bean which
+     *         completed successfully within the budget, in completion order.
+     *         Beans which failed or ran out of time are not included.
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Long> warmUp() {
+        Map<String, WarmUpBean> beans = beanFactory.getBeansOfType(WarmUpBean.class, false, false);
+        final Map<String, Long> timings = new LinkedHashMap<String, Long>();
+        synchronized (failed) {
+            failed.clear();
+        }
+        if (beans.isEmpty()) {
+            return timings;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, beans.size()),
+                new ThreadFactory() {
+                    private final AtomicInteger threadCount = new AtomicInteger();
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "WarmUpRunner #" + threadCount.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        try {
+            for (Map.Entry<String, WarmUpBean> entry : beans.entrySet()) {
+                final String name = entry.getKey();
+                final WarmUpBean bean = entry.getValue();
+                executor.execute(new Runnable() {
+                    public void run() {
+                        long start = System.currentTimeMillis();
+                        try {
+                            bean.warmUp();
+                        } catch (InterruptedException e) {
+                            return;
+                        } catch (Exception e) {
+                            log.warn("Failed to warm up bean '" + name + "'", e);
+                            synchronized (failed) {
+                                failed.add(name);
+                            }
+                            return;
+                        }
+                        long time = System.currentTimeMillis() - start;
+                        if (log.isDebugEnabled()) {
+                            log.debug("Warmed up bean '" + name + "' in " + time + " ms");
+                        }
+                        synchronized (timings) {
+                            timings.put(name, time);
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            try {
+                executor.awaitTermination(budgetMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Set<String> failedNames = getFailed();
+        synchronized (timings) {
+            for (String name : beans.keySet()) {
+                if (!timings.containsKey(name) && !failedNames.contains(name)) {
+                    log.warn("Bean '" + name + "' did not finish warming up within " 
+                            + budgetMillis + " ms");
+                }
+            }
+            return new LinkedHashMap<String, Long>(timings);
+        }
+    }
+
+    /**
+     * Returns the names of the beans whose warm-up threw an exception during 
+     * the last call to {@link #warmUp()}.
+     */
+    public Set<String> getFailed() {
+        synchronized (failed) {
+            return new LinkedHashSet<String>(failed);
+        }
+    }
+}
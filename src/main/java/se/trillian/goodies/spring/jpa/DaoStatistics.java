@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies.spring.jpa;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Latency histograms of the operations performed by the
+ * {@link GenericJpaDaoSupport} Daos of an entity. There is one instance per
+ * entity name which is registered in the platform MBean server as
+ * <code>se.trillian.goodies:type=Dao,name=&lt;entity name&gt;</code> while
+ * it is used by at least one Dao. Instances are reference counted using
+ * {@link #acquire(String)} and {@link #release()}.
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+public class DaoStatistics implements DaoStatisticsMBean {
+    private static final Logger log = LoggerFactory.getLogger(DaoStatistics.class);
+
+    private static final Map<String, DaoStatistics> instances =
+        new HashMap<String, DaoStatistics>();
+
+    private final String entityName;
+    private ObjectName objectName = null;
+    private int references = 0;
+    private final ConcurrentMap<String, LatencyHistogram> histograms =
+        new ConcurrentHashMap<String, LatencyHistogram>();
+
+    private DaoStatistics(String entityName) {
+        this.entityName = entityName;
+    }
+
+    /**
+     * Returns the statistics of the specified entity, creating and
+     * registering them with JMX if necessary. Every call must be matched by
+     * a call to {@link #release()}.
+     */
+    public static DaoStatistics acquire(String entityName) {
+        synchronized (instances) {
+            DaoStatistics stats = instances.get(entityName);
+            if (stats == null) {
+                stats = new DaoStatistics(entityName);
+                instances.put(entityName, stats);
+                try {
+                    ObjectName name = new ObjectName("se.trillian.goodies:type=Dao,name=" 
+                            + ObjectName.quote(entityName));
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(stats, name);
+                    stats.objectName = name;
+                } catch (Exception e) {
+                    log.warn("Failed to register Dao statistics MBean for entity '"
+                            + entityName + "': " + e.getMessage());
+                }
+            }
+            stats.references++;
+            return stats;
+        }
+    }
+
+    /**
+     * Releases statistics returned by {@link #acquire(String)}. When the
+     * last reference is released the statistics are unregistered from JMX
+     * and the next call to {@link #acquire(String)} starts from scratch.
+     */
+    public void release() {
+        synchronized (instances) {
+            if (references == 0 || --references > 0) {
+                return;
+            }
+            if (instances.get(entityName) == this) {
+                instances.remove(entityName);
+            }
+            if (objectName != null) {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+                } catch (Exception e) {
+                    log.warn("Failed to unregister Dao statistics MBean for entity '"
+                            + entityName + "': " + e.getMessage());
+                }
+                objectName = null;
+            }
+        }
+    }
+
+    /**
+     * Records the latency of an operation.
+     *
+     * @param operation the operation, e.g. <code>load</code>.
+     * @param micros the latency in microseconds.
+     */
+    public void record(String operation, long micros) {
+        LatencyHistogram histogram = histograms.get(operation);
+        if (histogram == null) {
+            LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(operation, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        histogram.record(micros);
+    }
+
+    /**
+     * Returns the histogram of the specified operation or <code>null</code>
+     * if no such operation has been recorded.
+     */
+    public LatencyHistogram getHistogram(String operation) {
+        return histograms.get(operation);
+    }
+
+    public String getEntityName() {
+        return entityName;
+    }
+
+    public String[] getOperations() {
+        return new TreeMap<String, LatencyHistogram>(histograms).keySet().toArray(new String[0]);
+    }
+
+    public long getCount(String operation) {
+        LatencyHistogram histogram = histograms.get(operation);
+        return histogram == null ? 0 : histogram.getCount();
+    }
+
+    public double getMean(String operation) {
+        LatencyHistogram histogram = histograms.get(operation);
+        return histogram == null ? 0.0 : histogram.getMean();
+    }
+
+    public long getMax(String operation) {
+        LatencyHistogram histogram = histograms.get(operation);
+        return histogram == null ? 0 : histogram.getMax();
+    }
+
+    public long getValueAtPercentile(String operation, double percentile) {
+        LatencyHistogram histogram = histograms.get(operation);
+        return histogram == null ? 0 : histogram.getValueAtPercentile(percentile);
+    }
+
+    /**
+     * Returns one line per operation with the count, mean, 50th, 99th and
+     * 99.9th percentiles and max latency in microseconds.
+     */
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<String, LatencyHistogram>(histograms).entrySet()) {
+            LatencyHistogram h = entry.getValue();
+            sb.append(entry.getKey())
+              .append(": count=").append(h.getCount())
+              .append(" mean=").append(Math.round(h.getMean()))
+              .append(" p50=").append(h.getValueAtPercentile(50))
+              .append(" p99=").append(h.getValueAtPercentile(99))
+              .append(" p99.9=").append(h.getValueAtPercentile(99.9))
+              .append(" max=").append(h.getMax())
+              .append('\n');
+        }
+        return sb.toString();
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+    }
+}
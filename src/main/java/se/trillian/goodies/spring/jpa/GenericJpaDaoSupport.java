@@ -15,27 +15,175 @@
  */
 package se.trillian.goodies.spring.jpa;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
 import javax.persistence.Entity;
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
 import javax.persistence.PersistenceException;
+import javax.persistence.Query;
+
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeanWrapperImpl;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.core.ConfigurableObjectInputStream;
 import org.springframework.orm.jpa.JpaCallback;
+import org.springframework.orm.jpa.JpaTemplate;
 import org.springframework.orm.jpa.support.JpaDaoSupport;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.Assert;
+
+import se.trillian.goodies.spring.Drainable;
 
 /**
  * Abstract generic Dao for making request with JPA. This class needs to know
  * the type of the items retrieved by this dao - both the implemented interface
  * (<code>ItemType</code>) and the actual JPA class (by implementing the
  * abstract method {@link #getJpaClass()}).
+ * <p>
+ * The batch operations ({@link #persistAll(Iterable)}, 
+ * {@link #mergeAll(Iterable)} and {@link #deleteAllById(Iterable)}) run in a
+ * single {@link JpaCallback} and flush and clear the persistence context 
+ * every <code>batchSize</code> entities to keep memory usage constant. They
+ * should be called within a transaction. Note that clearing the persistence
+ * context detaches all entities managed by it, not only the ones passed to 
+ * the batch operation.
+ * </p>
+ * <p>
+ * Large tables can be read using {@link #iterate(int)} and 
+ * {@link #forEach(int, ItemCallback, int)} which use keyset pagination on
+ * the id property, i.e. <code>where id &gt; :lastId order by id</code>, and
+ * clear the persistence context between pages.
+ * </p>
+ * <p>
+ * If a <code>cacheManager</code> has been set {@link #load(Object)} and 
+ * {@link #loadAll(Collection)} read through the ehcache cache named by 
+ * <code>cacheName</code> (defaults to the name of the JPA class) which
+ * must exist in the cache manager. All write operations remove the 
+ * affected ids from the cache. Inside a transaction with synchronization
+ * active the ids are removed again when the transaction completes and the
+ * cache is neither read nor populated for the rest of a transaction which
+ * has written the entity, so a concurrent load can't leave uncommitted or
+ * stale state in the cache. Configure the cache with an 
+ * <code>RMICacheReplicatorFactory</code> replicating removals (and 
+ * preferably not puts) to have the invalidations replicated to the other 
+ * nodes in the cluster through the cache manager's peer provider. The 
+ * cache never holds the instances managed by the persistence context. It
+ * holds detached copies made by {@link #copyForCache(Object)} which by 
+ * default serializes the entity, so the JPA class must be 
+ * {@link Serializable}. Cache hits return the shared copy so the cache 
+ * should only be used for entities which aren't modified once loaded, 
+ * e.g. reference data.
+ * </p>
+ * <p>
+ * The JPQL of the queries used by this class and of the queries declared by
+ * subclasses in {@link #registerQueries(Map)} is built once when the Dao is
+ * initialized and looked up by name using {@link #getQuery(String)}. Since
+ * the same query string is used every time the JPA provider's query plan 
+ * cache will only have to parse it once.
+ * </p>
+ * <p>
+ * The latency of every operation is recorded in a {@link DaoStatistics} 
+ * per entity which is exposed through JMX from the time the first Dao of 
+ * the entity is initialized until the last one is destroyed. Operations 
+ * taking longer than <code>slowThreshold</code> milliseconds (defaults to 
+ * 1000) are logged with the entity name and id.
+ * </p>
+ * <p>
+ * If <code>writeBehind</code> is set {@link #persistAsync(Object)} queues 
+ * items which are persisted in batches of <code>batchSize</code> items by 
+ * a background thread, each batch in a transaction of its own created 
+ * using the <code>transactionManager</code>. At most 
+ * <code>writeBehindCapacity</code> items are queued. When the queue is full
+ * the caller waits up to <code>writeBehindTimeout</code> milliseconds and
+ * then persists the item itself. Items which fail to be persisted by the 
+ * background thread are logged and dropped, so write-behind is only 
+ * suitable for items like audit events and statistics. The queue is 
+ * drained when the context is closed (see {@link Drainable}) and again in
+ * {@link #destroy()}. Subclasses needing to clean up when destroyed 
+ * override {@link #destroyDao()}.
+ * </p>
+ * <p>
+ * {@link #update(Object, Map)}, {@link #update(Object, Map, Object)} and
+ * {@link #updateWhere(Map, Map)} update individual properties using a 
+ * single JPQL <code>update</code> statement without loading the items.
+ * Since such statements bypass the JPA provider's optimistic locking they
+ * always increment the version property (see 
+ * {@link #getVersionPropertyName()}).
+ * </p>
  * 
  * @author Henric Müller
  * @version $Id$
  */
-public abstract class GenericJpaDaoSupport<ItemType, IdType> extends JpaDaoSupport {
+public abstract class GenericJpaDaoSupport<ItemType, IdType> extends JpaDaoSupport 
+        implements Drainable, DisposableBean {
+
+    private static final Logger log = LoggerFactory.getLogger(GenericJpaDaoSupport.class);
 
     public static final String DEFAULT_ID_PROPERTY_NAME = "id";
+    public static final String DEFAULT_VERSION_PROPERTY_NAME = "version";
+    public static final int DEFAULT_BATCH_SIZE = 50;
+    public static final int DEFAULT_LOAD_CHUNK_SIZE = 500;
+    public static final long DEFAULT_SLOW_THRESHOLD = 1000;
+    public static final int DEFAULT_WRITE_BEHIND_CAPACITY = 10000;
+    public static final long DEFAULT_WRITE_BEHIND_TIMEOUT = 1000;
+    public static final long DEFAULT_WRITE_BEHIND_SHUTDOWN_TIMEOUT = 30000;
+    
+    public static final String DELETE_BY_ID_QUERY = "deleteById";
+    public static final String COUNT_ALL_QUERY = "countAll";
     
-    private String deleteQuery = null;
+    private static final Pattern PROPERTY_PATTERN = Pattern.compile("[A-Za-z_$][\\w$]*(\\.[A-Za-z_$][\\w$]*)*");
+    
+    private volatile Map<String, String> queries = null;
+    private final ConcurrentMap<String, String> findByQueries = new ConcurrentHashMap<String, String>();
+    private final ConcurrentMap<String, String> updateQueries = new ConcurrentHashMap<String, String>();
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private String deleteAllQuery = null;
+    private int loadChunkSize = DEFAULT_LOAD_CHUNK_SIZE;
+    private String loadAllQuery = null;
+    private CacheManager cacheManager = null;
+    private String cacheName = null;
+    private Ehcache cache = null;
+    private long slowThreshold = DEFAULT_SLOW_THRESHOLD;
+    private volatile DaoStatistics statistics = null;
+    private boolean writeBehind = false;
+    private int writeBehindCapacity = DEFAULT_WRITE_BEHIND_CAPACITY;
+    private long writeBehindTimeout = DEFAULT_WRITE_BEHIND_TIMEOUT;
+    private TransactionTemplate transactionTemplate = null;
+    private WriteBehindQueue<ItemType> writeBehindQueue = null;
     
     /**
      * Subclasses needs to implement this to provide the actual JPA class which
@@ -46,10 +194,486 @@ public abstract class GenericJpaDaoSupport<ItemType, IdType> extends JpaDaoSuppo
      */
     protected abstract Class<? extends ItemType> getJpaClass();
 
+    public int getBatchSize() {
+        return batchSize;
+    }
+    
+    /**
+     * Sets the number of entities after which the batch operations flush and
+     * clear the persistence context. Should normally match the JDBC batch 
+     * size of the JPA provider.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+        this.deleteAllQuery = null;
+    }
+    
+    public int getLoadChunkSize() {
+        return loadChunkSize;
+    }
+    
+    /**
+     * Sets the maximum number of ids in each query issued by 
+     * {@link #loadAll(Collection)}. Must not exceed the maximum number of 
+     * parameters supported by the database.
+     */
+    public void setLoadChunkSize(int loadChunkSize) {
+        this.loadChunkSize = loadChunkSize;
+        this.loadAllQuery = null;
+    }
+    
+    public void setCacheManager(CacheManager cacheManager) {
+        this.cacheManager = cacheManager;
+    }
+    
+    public void setCacheName(String cacheName) {
+        this.cacheName = cacheName;
+    }
+    
+    public void setWriteBehind(boolean writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+    
+    public void setWriteBehindCapacity(int writeBehindCapacity) {
+        this.writeBehindCapacity = writeBehindCapacity;
+    }
+    
+    public void setWriteBehindTimeout(long writeBehindTimeout) {
+        this.writeBehindTimeout = writeBehindTimeout;
+    }
+    
+    public void setTransactionManager(PlatformTransactionManager transactionManager) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+    
+    @Override
+    protected void initDao() throws Exception {
+        super.initDao();
+        getQueries();
+        if (writeBehind && transactionTemplate == null) {
+            throw new IllegalArgumentException("transactionManager is required when writeBehind is set");
+        }
+        if (cacheManager != null) {
+            String name = cacheName != null ? cacheName : getJpaClass().getName();
+            cache = cacheManager.getEhcache(name);
+            if (cache == null) {
+                throw new IllegalArgumentException("No cache named '" + name + "' found in cache manager");
+            }
+            if (!Serializable.class.isAssignableFrom(getJpaClass())) {
+                throw new IllegalArgumentException(getJpaClass().getName() 
+                        + " must be Serializable to be cached");
+            }
+        }
+        
+        // Acquire resources last. destroy() isn't called if we fail.
+        statistics = DaoStatistics.acquire(getEntityName());
+        if (writeBehind) {
+            writeBehindQueue = new WriteBehindQueue<ItemType>("WriteBehind-" + getEntityName(), 
+                    writeBehindCapacity, batchSize, new WriteBehindQueue.Writer<ItemType>() {
+                        public void write(List<ItemType> batch) {
+                            persistInTransaction(batch);
+                        }
+                    });
+        }
+    }
+    
+    /**
+     * Returns the id of the specified item. This implementation reads the 
+     * <code>getIdPropertyName()</code> property of the item using its getter
+     * method. Used when caching and when logging slow operations.
+     */
+    @SuppressWarnings("unchecked")
+    protected IdType getId(ItemType item) {
+        return (IdType) new BeanWrapperImpl(item).getPropertyValue(getIdPropertyName());
+    }
+    
+    private void evict(ItemType item) {
+        if (cache != null && item != null) {
+            Object id = null;
+            try {
+                id = getId(item);
+            } catch (BeansException e) {
+                // Unable to determine the id. Play safe.
+                evictAll();
+                return;
+            }
+            if (id != null) {
+                evictById(id);
+            }
+        }
+    }
+    
+    private void evictById(Object id) {
+        if (cache != null) {
+            cache.remove(id);
+            PendingEvictions pending = getPendingEvictions(true);
+            if (pending != null) {
+                pending.add(id);
+            }
+        }
+    }
+    
+    private void evictAll() {
+        if (cache != null) {
+            cache.removeAll();
+            PendingEvictions pending = getPendingEvictions(true);
+            if (pending != null) {
+                pending.addAll();
+            }
+        }
+    }
+    
+    /**
+     * Returns the evictions to be repeated when the current transaction 
+     * completes. Returns <code>null</code> if transaction synchronization 
+     * isn't active or, unless <code>create</code> is <code>true</code>, if 
+     * the current transaction hasn't written the entity. The evictions are 
+     * bound to the cache so they are shared by all Daos using it.
+     */
+    private PendingEvictions getPendingEvictions(boolean create) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return null;
+        }
+        PendingEvictions pending = (PendingEvictions) TransactionSynchronizationManager.getResource(cache);
+        if (pending == null && create) {
+            pending = new PendingEvictions(cache);
+            TransactionSynchronizationManager.bindResource(cache, pending);
+            TransactionSynchronizationManager.registerSynchronization(pending);
+        }
+        return pending;
+    }
+    
+    /**
+     * Registers the queries of this Dao. Subclasses may override this to 
+     * add their own queries but must call this implementation.
+     * 
+     * @param queries query names mapped to JPQL.
+     */
+    protected void registerQueries(Map<String, String> queries) {
+        queries.put(DELETE_BY_ID_QUERY, "delete from " + getEntityName() + " where " + getIdPropertyName() + "=?1");
+        queries.put(COUNT_ALL_QUERY, "select count(e) from " + getEntityName() + " e");
+    }
+    
+    private Map<String, String> getQueries() {
+        Map<String, String> q = queries;
+        if (q == null) {
+            q = new HashMap<String, String>();
+            registerQueries(q);
+            queries = q;
+        }
+        return q;
+    }
+    
+    /**
+     * Returns the JPQL of the query registered with the specified name.
+     * 
+     * @throws IllegalArgumentException if there's no such query.
+     */
+    protected String getQuery(String name) {
+        String query = getQueries().get(name);
+        if (query == null) {
+            throw new IllegalArgumentException("No query named '" + name + "' registered");
+        }
+        return query;
+    }
+    
+    /**
+     * Runs the query registered with the specified name using the specified
+     * positional parameters.
+     */
+    @SuppressWarnings("unchecked")
+    protected List<ItemType> findByQuery(String name, final Object ... params) {
+        final String query = getQuery(name);
+        long start = System.nanoTime();
+        try {
+            return (List<ItemType>) getJpaTemplate().execute(new JpaCallback() {
+                public Object doInJpa(EntityManager entityManager) throws PersistenceException {
+                    Query q = entityManager.createQuery(query);
+                    for (int i = 0; i < params.length; i++) {
+                        q.setParameter(i + 1, params[i]);
+                    }
+                    return q.getResultList();
+                }
+            });
+        } finally {
+            record("findByQuery:" + name, null, start);
+        }
+    }
+    
+    /**
+     * Returns the number of items.
+     */
+    public long countAll() {
+        long start = System.nanoTime();
+        try {
+            final String query = getQuery(COUNT_ALL_QUERY);
+            Number count = (Number) getJpaTemplate().execute(new JpaCallback() {
+                public Object doInJpa(EntityManager entityManager) throws PersistenceException {
+                    return entityManager.createQuery(query).getSingleResult();
+                }
+            });
+            return count.longValue();
+        } finally {
+            record("countAll", null, start);
+        }
+    }
+    
+    /**
+     * Returns all items with the specified property equal to the specified 
+     * value.
+     * 
+     * @param property the property name, e.g. <code>name</code> or 
+     *        <code>address.city</code>.
+     */
+    @SuppressWarnings("unchecked")
+    public List<ItemType> findBy(String property, final Object value) {
+        String q = findByQueries.get(property);
+        if (q == null) {
+            checkPropertyName(property);
+            q = "select e from " + getEntityName() + " e where e." + property + "=?1";
+            findByQueries.putIfAbsent(property, q);
+        }
+        final String query = q;
+        long start = System.nanoTime();
+        try {
+            return (List<ItemType>) getJpaTemplate().execute(new JpaCallback() {
+                public Object doInJpa(EntityManager entityManager) throws PersistenceException {
+                    return entityManager.createQuery(query).setParameter(1, value).getResultList();
+                }
+            });
+        } finally {
+            record("findBy:" + property, value, start);
+        }
+    }
+    
+    /**
+     * Sets the number of milliseconds after which an operation is logged as
+     * slow. Use a negative value to disable.
+     */
+    public void setSlowThreshold(long slowThreshold) {
+        this.slowThreshold = slowThreshold;
+    }
+    
+    /**
+     * Returns the latency statistics of the entity of this Dao or 
+     * <code>null</code> if the Dao hasn't been initialized.
+     */
+    public DaoStatistics getStatistics() {
+        return statistics;
+    }
+    
+    private void record(String operation, Object id, long start) {
+        long micros = (System.nanoTime() - start) / 1000;
+        DaoStatistics stats = statistics;
+        if (stats != null) {
+            stats.record(operation, micros);
+        }
+        if (slowThreshold >= 0 && micros >= slowThreshold * 1000) {
+            log.warn("Slow " + operation + " of " + getEntityName() 
+                    + (id != null ? " with id " + id : "") + " took " + (micros / 1000) + " ms");
+        }
+    }
+    
+    private void recordItem(String operation, ItemType item, long start) {
+        Object id = null;
+        if (slowThreshold >= 0 && System.nanoTime() - start >= slowThreshold * 1000000) {
+            try {
+                id = item != null ? getId(item) : null;
+            } catch (RuntimeException e) {
+            }
+        }
+        record(operation, id, start);
+    }
+    
     protected String getIdPropertyName() {
         return DEFAULT_ID_PROPERTY_NAME;
     }
     
+    /**
+     * Returns the name of the numeric version property incremented by the 
+     * bulk updates and checked by {@link #update(Object, Map, Object)}. 
+     * Subclasses of entities without a version property return 
+     * <code>null</code>.
+     */
+    protected String getVersionPropertyName() {
+        return DEFAULT_VERSION_PROPERTY_NAME;
+    }
+    
+    /**
+     * Sets the specified properties of the item with the specified id using
+     * a single JPQL <code>update</code> statement without loading the item.
+     * The version property is incremented unless it is one of the updated
+     * properties. If the persistence context outlives the call, e.g. when 
+     * called within a transaction, and the item is already managed by it 
+     * the item is refreshed after the update so that the persistence 
+     * context doesn't hold stale state. Managed items are found using 
+     * {@link #findInPersistenceContext(EntityManager, Object)} so, like 
+     * {@link #loadAll(Collection)}, this requires subclasses to override 
+     * it. Otherwise managed items are left stale. The item is removed from
+     * the cache, if any.
+     * 
+     * @param values property names mapped to their new values.
+     * @return <code>true</code> if the item was updated.
+     */
+    public boolean update(IdType id, Map<String, ?> values) {
+        long start = System.nanoTime();
+        try {
+            return updateById(id, values, false, null);
+        } finally {
+            record("update", id, start);
+        }
+    }
+    
+    /**
+     * Like {@link #update(Object, Map)} but only updates the item if its 
+     * version property equals <code>expectedVersion</code>. The version 
+     * is incremented by 1.
+     * 
+     * @return <code>true</code> if the item was updated, <code>false</code>
+     *         if it doesn't exist or has another version.
+     * @throws IllegalStateException if the entity has no version property.
+     */
+    public boolean update(IdType id, Map<String, ?> values, Object expectedVersion) {
+        long start = System.nanoTime();
+        try {
+            return updateById(id, values, true, expectedVersion);
+        } finally {
+            record("update", id, start);
+        }
+    }
+    
+    private boolean updateById(final IdType id, Map<String, ?> values, final boolean checkVersion, 
+            Object expectedVersion) {
+        
+        final List<Object> params = new ArrayList<Object>(values.values());
+        params.add(id);
+        if (checkVersion) {
+            params.add(expectedVersion);
+        }
+        final String query = getUpdateQuery(values.keySet(), true, checkVersion);
+        final boolean refresh = isPersistenceContextShared();
+        Integer count = (Integer) getJpaTemplate().execute(new JpaCallback() {
+            public Object doInJpa(EntityManager entityManager) throws PersistenceException {
+                Query q = entityManager.createQuery(query);
+                for (int i = 0; i < params.size(); i++) {
+                    q.setParameter(i + 1, params.get(i));
+                }
+                int count = q.executeUpdate();
+                if (refresh && count > 0) {
+                    ItemType item = findInPersistenceContext(entityManager, id);
+                    if (item != null) {
+                        entityManager.refresh(item);
+                    }
+                }
+                return count;
+            }
+        });
+        evictById(id);
+        return count.intValue() > 0;
+    }
+    
+    /**
+     * Returns <code>true</code> if entities loaded by one call to the 
+     * {@link JpaTemplate} may still be managed during the next, i.e. if 
+     * the template uses a fixed {@link EntityManager} or one bound to the 
+     * current transaction.
+     */
+    private boolean isPersistenceContextShared() {
+        JpaTemplate jpaTemplate = getJpaTemplate();
+        if (jpaTemplate.getEntityManager() != null) {
+            return true;
+        }
+        EntityManagerFactory emf = jpaTemplate.getEntityManagerFactory();
+        return emf != null && TransactionSynchronizationManager.hasResource(emf);
+    }
+    
+    /**
+     * Sets the specified properties of all items whose properties equal the
+     * specified conditions using a single JPQL <code>update</code> 
+     * statement and increments their version property unless it is one of
+     * the updated properties. Clears the cache, if any. Items already 
+     * loaded into the persistence context are not refreshed.
+     * 
+     * @param values property names mapped to their new values.
+     * @param conditions property names mapped to the values they must 
+     *        equal. All conditions must be met.
+     * @return the number of updated items.
+     */
+    public int updateWhere(Map<String, ?> values, Map<String, ?> conditions) {
+        long start = System.nanoTime();
+        try {
+            final List<Object> params = new ArrayList<Object>(values.values());
+            params.addAll(conditions.values());
+            StringBuilder sb = new StringBuilder(getUpdateQuery(values.keySet(), false, false));
+            int index = values.size() + 1;
+            String separator = " where ";
+            for (String property : conditions.keySet()) {
+                checkPropertyName(property);
+                sb.append(separator).append("e.").append(property).append("=?").append(index++);
+                separator = " and ";
+            }
+            final String query = sb.toString();
+            Integer count = (Integer) getJpaTemplate().execute(new JpaCallback() {
+                public Object doInJpa(EntityManager entityManager) throws PersistenceException {
+                    Query q = entityManager.createQuery(query);
+                    for (int i = 0; i < params.size(); i++) {
+                        q.setParameter(i + 1, params.get(i));
+                    }
+                    return q.executeUpdate();
+                }
+            });
+            evictAll();
+            return count.intValue();
+        } finally {
+            record("updateWhere", null, start);
+        }
+    }
+    
+    /**
+     * Returns <code>update E e set e.p1=?1, ..., e.pn=?n, e.v=e.v + 1</code>
+     * optionally followed by an id and version condition. Cached per 
+     * property list.
+     */
+    private String getUpdateQuery(Collection<String> properties, boolean byId, boolean checkVersion) {
+        Assert.notEmpty(properties, "No properties to update");
+        String key = properties + ":" + byId + ":" + checkVersion;
+        String query = updateQueries.get(key);
+        if (query != null) {
+            return query;
+        }
+        String version = getVersionPropertyName();
+        if (checkVersion && version == null) {
+            throw new IllegalStateException(getEntityName() + " has no version property");
+        }
+        StringBuilder sb = new StringBuilder("update ").append(getEntityName()).append(" e set ");
+        int index = 1;
+        for (String property : properties) {
+            checkPropertyName(property);
+            if (index > 1) {
+                sb.append(", ");
+            }
+            sb.append("e.").append(property).append("=?").append(index++);
+        }
+        if (version != null && !properties.contains(version)) {
+            sb.append(", e.").append(version).append("=e.").append(version).append(" + 1");
+        }
+        if (byId) {
+            sb.append(" where e.").append(getIdPropertyName()).append("=?").append(index++);
+        }
+        if (checkVersion) {
+            sb.append(" and e.").append(version).append("=?").append(index++);
+        }
+        query = sb.toString();
+        updateQueries.putIfAbsent(key, query);
+        return query;
+    }
+    
+    private static void checkPropertyName(String property) {
+        if (!PROPERTY_PATTERN.matcher(property).matches()) {
+            throw new IllegalArgumentException("Invalid property name '" + property + "'");
+        }
+    }
+    
     protected String getEntityName() {
         Entity entity = getJpaClass().getAnnotation(Entity.class);
         if (entity == null) {
@@ -59,36 +683,586 @@ public abstract class GenericJpaDaoSupport<ItemType, IdType> extends JpaDaoSuppo
     }
     
     public void delete(ItemType item) {
-        getJpaTemplate().remove(item);
+        long start = System.nanoTime();
+        try {
+            getJpaTemplate().remove(item);
+            evict(item);
+        } finally {
+            recordItem("delete", item, start);
+        }
     }
 
     
     public void deleteById(final IdType id) {
-        if (deleteQuery == null) {
-            deleteQuery = "delete from " + getEntityName() + " where " + getIdPropertyName() + "=?";
+        long start = System.nanoTime();
+        try {
+            final String deleteQuery = getQuery(DELETE_BY_ID_QUERY);
+            getJpaTemplate().execute(new JpaCallback() {
+                public Object doInJpa(EntityManager entityManager) throws PersistenceException {
+                    return entityManager.createQuery(deleteQuery).setParameter(1, id).executeUpdate();
+                }
+            });
+            evictById(id);
+        } finally {
+            record("deleteById", id, start);
         }
-        getJpaTemplate().execute(new JpaCallback() {
-            public Object doInJpa(EntityManager entityManager) throws PersistenceException {
-                return entityManager.createQuery(deleteQuery).setParameter(1, id).executeUpdate();
-            }
-        });
     }
 
     public void refresh(ItemType item) {
-        getJpaTemplate().refresh(item);
+        long start = System.nanoTime();
+        try {
+            getJpaTemplate().refresh(item);
+        } finally {
+            recordItem("refresh", item, start);
+        }
     }
 
     public void persist(ItemType item) {
-        getJpaTemplate().persist(item);
+        long start = System.nanoTime();
+        try {
+            getJpaTemplate().persist(item);
+            evict(item);
+        } finally {
+            recordItem("persist", item, start);
+        }
     }
     
     public ItemType merge(ItemType item) {
-        return getJpaTemplate().merge(item);
+        long start = System.nanoTime();
+        try {
+            ItemType merged = getJpaTemplate().merge(item);
+            evict(merged);
+            return merged;
+        } finally {
+            recordItem("merge", item, start);
+        }
     }
 
+    /**
+     * Queues the item to be persisted by a background thread if 
+     * <code>writeBehind</code> has been set. Persists it immediately 
+     * otherwise, or if the queue stays full for longer than 
+     * <code>writeBehindTimeout</code> milliseconds, or if the queue has been 
+     * drained. Items persisted immediately are persisted in a transaction of
+     * their own if a <code>transactionManager</code> has been set and in the
+     * caller's transaction otherwise.
+     * 
+     * @throws IllegalStateException if the item has to be persisted 
+     *         immediately but there's neither a 
+     *         <code>transactionManager</code> nor an active transaction.
+     */
+    public void persistAsync(ItemType item) {
+        WriteBehindQueue<ItemType> queue = writeBehindQueue;
+        if (queue != null) {
+            try {
+                if (queue.offer(item, writeBehindTimeout)) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        persistInTransaction(Collections.singletonList(item));
+    }
+    
+    private void persistInTransaction(final List<? extends ItemType> items) {
+        if (transactionTemplate == null) {
+            if (!TransactionSynchronizationManager.isActualTransactionActive()) {
+                throw new IllegalStateException("No transaction active and no transactionManager set. " 
+                        + "Unable to persist " + getEntityName() + " items.");
+            }
+            persistAll(items);
+            return;
+        }
+        transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                persistAll(items);
+            }
+        });
+    }
+    
+    /**
+     * Waits for the items queued by {@link #persistAsync(Object)} to be 
+     * persisted. Items queued after this has been called are persisted 
+     * immediately.
+     */
+    public boolean drain(long timeoutMillis) throws InterruptedException {
+        WriteBehindQueue<ItemType> queue = writeBehindQueue;
+        if (queue == null) {
+            return true;
+        }
+        boolean drained = queue.drain(timeoutMillis);
+        if (!drained) {
+            log.warn(queue.getPending() + " queued " + getEntityName() + " items not persisted");
+        }
+        return drained;
+    }
+    
+    /**
+     * Drains the write-behind queue, calls {@link #destroyDao()} and 
+     * releases the statistics of this Dao. Final to make sure queued items
+     * aren't lost. Subclasses override {@link #destroyDao()} instead.
+     */
+    public final void destroy() throws Exception {
+        try {
+            drain(DEFAULT_WRITE_BEHIND_SHUTDOWN_TIMEOUT);
+            destroyDao();
+        } finally {
+            DaoStatistics stats = statistics;
+            if (stats != null) {
+                statistics = null;
+                stats.release();
+            }
+        }
+    }
+    
+    /**
+     * Called by {@link #destroy()} after the write-behind queue has been 
+     * drained. Subclasses may override this to release their resources. 
+     * The default implementation does nothing.
+     */
+    protected void destroyDao() throws Exception {
+    }
+    
+    /**
+     * Persists all items flushing and clearing the persistence context every
+     * <code>batchSize</code> items.
+     */
+    public void persistAll(final Iterable<? extends ItemType> items) {
+        long start = System.nanoTime();
+        try {
+            getJpaTemplate().execute(new JpaCallback() {
+                public Object doInJpa(EntityManager entityManager) throws PersistenceException {
+                    int count = 0;
+                    for (ItemType item : items) {
+                        entityManager.persist(item);
+                        evict(item);
+                        if (++count % batchSize == 0) {
+                            entityManager.flush();
+                            entityManager.clear();
+                        }
+                    }
+                    entityManager.flush();
+                    return null;
+                }
+            });
+        } finally {
+            record("persistAll", null, start);
+        }
+    }
+    
+    /**
+     * Merges all items flushing and clearing the persistence context every
+     * <code>batchSize</code> items. 
+     * 
+     * @return the merged items in the same order as <code>items</code>. 
+     *         Unless there are fewer than <code>batchSize</code> items 
+     *         some of them will have been detached.
+     */
+    @SuppressWarnings("unchecked")
+    public List<ItemType> mergeAll(final Iterable<? extends ItemType> items) {
+        long start = System.nanoTime();
+        try {
+            return (List<ItemType>) getJpaTemplate().execute(new JpaCallback() {
+                public Object doInJpa(EntityManager entityManager) throws PersistenceException {
+                    List<ItemType> result = items instanceof Collection 
+                        ? new ArrayList<ItemType>(((Collection<?>) items).size()) : new ArrayList<ItemType>();
+                    int count = 0;
+                    for (ItemType item : items) {
+                        ItemType merged = entityManager.merge(item);
+                        evict(merged);
+                        result.add(merged);
+                        if (++count % batchSize == 0) {
+                            entityManager.flush();
+                            entityManager.clear();
+                        }
+                    }
+                    entityManager.flush();
+                    return result;
+                }
+            });
+        } finally {
+            record("mergeAll", null, start);
+        }
+    }
+    
+    /**
+     * Deletes the items with the specified ids using one 
+     * <code>delete ... where id in (...)</code> statement per 
+     * <code>batchSize</code> ids. Like {@link #deleteById(Object)} this 
+     * bypasses the persistence context.
+     * 
+     * @return the number of deleted items.
+     */
+    public int deleteAllById(final Iterable<? extends IdType> ids) {
+        long start = System.nanoTime();
+        try {
+            Integer count = (Integer) getJpaTemplate().execute(new JpaCallback() {
+                public Object doInJpa(EntityManager entityManager) throws PersistenceException {
+                    int count = 0;
+                    Iterator<? extends IdType> it = ids.iterator();
+                    List<IdType> chunk = new ArrayList<IdType>(batchSize);
+                    while (it.hasNext()) {
+                        chunk.add(it.next());
+                        if (chunk.size() == batchSize || !it.hasNext()) {
+                            Query query = entityManager.createQuery(getDeleteAllQuery(chunk.size()));
+                            for (int i = 0; i < chunk.size(); i++) {
+                                query.setParameter(i + 1, chunk.get(i));
+                                evictById(chunk.get(i));
+                            }
+                            count += query.executeUpdate();
+                            chunk.clear();
+                        }
+                    }
+                    return count;
+                }
+            });
+            return count.intValue();
+        } finally {
+            record("deleteAllById", null, start);
+        }
+    }
+    
+    /**
+     * Returns a <code>delete ... where id in (?1, ?2, ...)</code> query with
+     * the specified number of parameters. The query for full chunks is 
+     * cached.
+     */
+    private String getDeleteAllQuery(int size) {
+        if (size == batchSize && deleteAllQuery != null) {
+            return deleteAllQuery;
+        }
+        String query = "delete from " + getEntityName() + " where " + getIdPropertyName() 
+            + " in (" + getParameterList(size) + ")";
+        if (size == batchSize) {
+            deleteAllQuery = query;
+        }
+        return query;
+    }
+    
+    /**
+     * Returns <code>?1, ?2, ..., ?size</code>.
+     */
+    protected static String getParameterList(int size) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1; i <= size; i++) {
+            if (i > 1) {
+                sb.append(", ");
+            }
+            sb.append('?').append(i);
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * Loads the items with the specified ids. Items found by 
+     * {@link #findInPersistenceContext(EntityManager, Object)} are returned
+     * as is. The rest are loaded using one 
+     * <code>select ... where id in (...)</code> query per 
+     * <code>loadChunkSize</code> ids.
+     * 
+     * @return the items in the same order as <code>ids</code>. Ids not found
+     *         are skipped.
+     */
+    @SuppressWarnings("unchecked")
+    public List<ItemType> loadAll(final Collection<? extends IdType> ids) {
+        long start = System.nanoTime();
+        try {
+            return (List<ItemType>) getJpaTemplate().execute(new JpaCallback() {
+                public Object doInJpa(EntityManager entityManager) throws PersistenceException {
+                    Map<Object, ItemType> found = new HashMap<Object, ItemType>();
+                    List<IdType> remaining = new ArrayList<IdType>();
+                    for (IdType id : new LinkedHashSet<IdType>(ids)) {
+                        ItemType item = getCached(id);
+                        if (item == null) {
+                            item = findInPersistenceContext(entityManager, id);
+                        }
+                        if (item != null) {
+                            found.put(id, item);
+                        } else {
+                            remaining.add(id);
+                        }
+                    }
+                    for (int start = 0; start < remaining.size(); start += loadChunkSize) {
+                        List<IdType> chunk = remaining.subList(start, 
+                                Math.min(start + loadChunkSize, remaining.size()));
+                        Query query = entityManager.createQuery(getLoadAllQuery(chunk.size()));
+                        for (int i = 0; i < chunk.size(); i++) {
+                            query.setParameter(i + 1, chunk.get(i));
+                        }
+                        for (Object[] row : (List<Object[]>) query.getResultList()) {
+                            found.put(row[0], (ItemType) row[1]);
+                            putCached(row[0], (ItemType) row[1]);
+                        }
+                    }
+                    List<ItemType> result = new ArrayList<ItemType>(ids.size());
+                    for (IdType id : ids) {
+                        ItemType item = found.get(id);
+                        if (item != null) {
+                            result.add(item);
+                        }
+                    }
+                    return result;
+                }
+            });
+        } finally {
+            record("loadAll", null, start);
+        }
+    }
+    
+    /**
+     * Returns the item with the specified id if it is already managed by the
+     * persistence context without accessing the database. JPA 1.0 provides 
+     * no way of doing this so this implementation always returns 
+     * <code>null</code>. Subclasses may override this using provider 
+     * specific APIs.
+     */
+    protected ItemType findInPersistenceContext(EntityManager entityManager, IdType id) {
+        return null;
+    }
+    
+    private String getLoadAllQuery(int size) {
+        if (size == loadChunkSize && loadAllQuery != null) {
+            return loadAllQuery;
+        }
+        String query = "select e." + getIdPropertyName() + ", e from " + getEntityName() 
+            + " e where e." + getIdPropertyName() + " in (" + getParameterList(size) + ")";
+        if (size == loadChunkSize) {
+            loadAllQuery = query;
+        }
+        return query;
+    }
+    
+    /**
+     * Callback used by {@link GenericJpaDaoSupport#forEach(int, ItemCallback, int)}.
+     */
+    public interface ItemCallback<T> {
+        void handle(T item) throws Exception;
+    }
+    
+    /**
+     * Returns an {@link Iterator} over all items in id order. The items are
+     * loaded <code>pageSize</code> items at a time and the persistence 
+     * context is cleared before each page is loaded, so the items returned 
+     * by the iterator will be detached once the next page has been loaded.
+     * Items inserted or deleted while iterating may or may not be returned.
+     */
+    public Iterator<ItemType> iterate(final int pageSize) {
+        return new Iterator<ItemType>() {
+            private List<Object[]> page = null;
+            private int index = 0;
+            
+            public boolean hasNext() {
+                if (page == null || (index == page.size() && page.size() == pageSize)) {
+                    page = loadPage(page == null || page.isEmpty() 
+                            ? null : page.get(page.size() - 1)[0], pageSize);
+                    index = 0;
+                }
+                return index < page.size();
+            }
+            
+            @SuppressWarnings("unchecked")
+            public ItemType next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return (ItemType) page.get(index++)[1];
+            }
+            
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+    
+    /**
+     * Calls the specified callback for all items in the same way as 
+     * {@link #iterate(int)}. If <code>threads</code> is greater than 1 the
+     * pages will be handed to that number of threads while the calling thread
+     * loads the next page. At most <code>threads</code> pages will be queued
+     * and if the queue is full the calling thread handles the page itself.
+     * Since the persistence context is cleared when the next page is loaded
+     * the items handed to other threads are detached and the callback must 
+     * not access lazily loaded state. Stops at the first failure.
+     * 
+     * @throws Exception the first exception thrown by the callback.
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(int pageSize, final ItemCallback<? super ItemType> callback, int threads) 
+            throws Exception {
+        
+        if (threads <= 1) {
+            for (Iterator<ItemType> it = iterate(pageSize); it.hasNext();) {
+                callback.handle(it.next());
+            }
+            return;
+        }
+        
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, 
+                new ArrayBlockingQueue<Runnable>(threads), new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            List<Object[]> page = loadPage(null, pageSize);
+            while (!page.isEmpty() && failure.get() == null) {
+                final List<Object[]> items = page;
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            for (Object[] row : items) {
+                                if (failure.get() != null) {
+                                    return;
+                                }
+                                callback.handle((ItemType) row[1]);
+                            }
+                        } catch (Throwable t) {
+                            failure.compareAndSet(null, t);
+                        }
+                    }
+                });
+                if (page.size() < pageSize) {
+                    break;
+                }
+                page = loadPage(page.get(page.size() - 1)[0], pageSize);
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        Throwable t = failure.get();
+        if (t instanceof Exception) {
+            throw (Exception) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+    }
+    
+    /**
+     * Clears the persistence context and loads the next page of 
+     * <code>[id, item]</code> rows with ids greater than 
+     * <code>lastId</code>.
+     */
+    @SuppressWarnings("unchecked")
+    private List<Object[]> loadPage(final Object lastId, final int pageSize) {
+        return (List<Object[]>) getJpaTemplate().execute(new JpaCallback() {
+            public Object doInJpa(EntityManager entityManager) throws PersistenceException {
+                entityManager.clear();
+                String id = "e." + getIdPropertyName();
+                Query query;
+                if (lastId == null) {
+                    query = entityManager.createQuery("select " + id + ", e from " + getEntityName() 
+                            + " e order by " + id);
+                } else {
+                    query = entityManager.createQuery("select " + id + ", e from " + getEntityName() 
+                            + " e where " + id + " > ?1 order by " + id);
+                    query.setParameter(1, lastId);
+                }
+                return query.setMaxResults(pageSize).getResultList();
+            }
+        });
+    }
+    
     @SuppressWarnings("all")
     public ItemType load(IdType id) {
-        return (ItemType) getJpaTemplate().find(getJpaClass(), id);
+        long start = System.nanoTime();
+        try {
+            ItemType item = getCached(id);
+            if (item != null) {
+                return item;
+            }
+            item = (ItemType) getJpaTemplate().find(getJpaClass(), id);
+            putCached(id, item);
+            return item;
+        } finally {
+            record("load", id, start);
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private ItemType getCached(Object id) {
+        if (cache == null || getPendingEvictions(false) != null) {
+            return null;
+        }
+        Element element = cache.get(id);
+        return element != null ? (ItemType) element.getObjectValue() : null;
+    }
+    
+    private void putCached(Object id, ItemType item) {
+        if (cache != null && item != null && getPendingEvictions(false) == null) {
+            Object copy = copyForCache(item);
+            if (copy != null) {
+                cache.put(new Element(id, copy));
+            }
+        }
+    }
+    
+    /**
+     * Returns a detached copy of the specified item to be put in the cache 
+     * instead of the instance managed by the persistence context. This 
+     * implementation serializes and deserializes the item. Subclasses may 
+     * override this with a cheaper copy. Returning <code>null</code> 
+     * prevents the item from being cached.
+     */
+    protected Object copyForCache(ItemType item) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(baos);
+            out.writeObject(item);
+            out.close();
+            return new ConfigurableObjectInputStream(new ByteArrayInputStream(baos.toByteArray()), 
+                    item.getClass().getClassLoader()).readObject();
+        } catch (IOException e) {
+            log.warn("Failed to copy " + getEntityName() + " for caching: " + e);
+        } catch (ClassNotFoundException e) {
+            log.warn("Failed to copy " + getEntityName() + " for caching: " + e);
+        }
+        return null;
+    }
+    
+    /**
+     * Removes the ids evicted during a transaction from the cache again when
+     * the transaction completes, whether it commits or rolls back, in case 
+     * they have been reloaded and cached by another thread in the meantime.
+     */
+    private static class PendingEvictions extends TransactionSynchronizationAdapter {
+        private final Ehcache cache;
+        private final Set<Object> ids = new HashSet<Object>();
+        private boolean all = false;
+        
+        PendingEvictions(Ehcache cache) {
+            this.cache = cache;
+        }
+        
+        void add(Object id) {
+            ids.add(id);
+        }
+        
+        void addAll() {
+            all = true;
+        }
+        
+        @Override
+        public void suspend() {
+            TransactionSynchronizationManager.unbindResource(cache);
+        }
+        
+        @Override
+        public void resume() {
+            TransactionSynchronizationManager.bindResource(cache, this);
+        }
+        
+        @Override
+        public void afterCompletion(int status) {
+            TransactionSynchronizationManager.unbindResourceIfPossible(cache);
+            if (all) {
+                cache.removeAll();
+            } else {
+                for (Object id : ids) {
+                    cache.remove(id);
+                }
+            }
+        }
     }
-
 }
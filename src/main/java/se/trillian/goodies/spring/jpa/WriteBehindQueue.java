@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies.spring.jpa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded queue of items written in batches by a background thread. Used by
+ * {@link GenericJpaDaoSupport#persistAsync(Object)}.
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+class WriteBehindQueue<T> implements Runnable {
+    private static final Logger log = LoggerFactory.getLogger(WriteBehindQueue.class);
+
+    private static final long POLL_INTERVAL = 100;
+
+    /**
+     * Writes a batch of items.
+     */
+    interface Writer<T> {
+        void write(List<T> batch);
+    }
+
+    private final BlockingQueue<T> queue;
+    private final int batchSize;
+    private final Writer<T> writer;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Thread thread;
+    private volatile boolean accepting = true;
+    private volatile boolean running = true;
+
+    /**
+     * Creates a new queue and starts the writer thread.
+     *
+     * @param name the name of the writer thread.
+     * @param capacity the maximum number of queued items.
+     * @param batchSize the maximum number of items written at once.
+     * @param writer writes the items.
+     */
+    public WriteBehindQueue(String name, int capacity, int batchSize, Writer<T> writer) {
+        this.queue = new LinkedBlockingQueue<T>(capacity);
+        this.batchSize = batchSize;
+        this.writer = writer;
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queues an item, waiting up to the specified time for space to become
+     * available.
+     *
+     * @return <code>true</code> if queued, <code>false</code> if the queue
+     *         is full or has been drained.
+     */
+    public boolean offer(T item, long timeoutMillis) throws InterruptedException {
+        pending.incrementAndGet();
+        boolean queued = false;
+        try {
+            queued = accepting && queue.offer(item, timeoutMillis, TimeUnit.MILLISECONDS);
+            return queued;
+        } finally {
+            if (!queued) {
+                written(1);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of items queued or being written.
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * Stops accepting new items and waits for the queued items to be
+     * written. The writer thread stops once all items have been written.
+     *
+     * @return <code>true</code> if all items were written in time.
+     */
+    public boolean drain(long timeoutMillis) throws InterruptedException {
+        accepting = false;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (this) {
+            long remaining;
+            while (pending.get() > 0 && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                wait(remaining);
+            }
+        }
+        running = false;
+        return pending.get() == 0;
+    }
+
+    public void run() {
+        List<T> batch = new ArrayList<T>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                T item = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (item == null) {
+                    continue;
+                }
+                batch.add(item);
+                queue.drainTo(batch, batchSize - 1);
+                try {
+                    writer.write(batch);
+                } catch (RuntimeException e) {
+                    log.error("Failed to write " + batch.size() + " items", e);
+                } finally {
+                    written(batch.size());
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                // Keep going until drained
+            }
+        }
+    }
+
+    private void written(int count) {
+        if (pending.addAndGet(-count) == 0) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+}
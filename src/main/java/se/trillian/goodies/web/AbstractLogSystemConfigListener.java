@@ -17,13 +17,13 @@ package se.trillian.goodies.web;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 
+import se.trillian.goodies.HostIdentity;
+
 /**
  * Abstract {@link ServletContextListener} which automatically loads a logging 
  * system config file based on the current host's host name or a prefix thereof.
@@ -35,7 +35,6 @@ public abstract class AbstractLogSystemConfigListener implements ServletContextL
     private final String logSystem;
     private final String base;
     private final String[] extensions;
-    private String fullHostName;
     
     protected ServletContext servletContext;
     
@@ -58,24 +57,17 @@ public abstract class AbstractLogSystemConfigListener implements ServletContextL
     }
     
     protected String getHostName() {
-        String hostName = getFullHostName();
-        int dotIndex = hostName.indexOf('.');
-        if (dotIndex != -1) {
-            hostName = hostName.substring(0, dotIndex);
-        }
-        return hostName;
+        return HostIdentity.getShortHostName(getFullHostName());
     }
     
     protected String getFullHostName() {
+        // Logging hasn't been configured yet so don't log through it.
+        String fullHostName = HostIdentity.lookupFullHostName();
         if (fullHostName == null) {
-            fullHostName = "localhost";
-            try {
-                fullHostName = InetAddress.getLocalHost().getHostName();
-            } catch (UnknownHostException uhe) {
-                servletContext.log(this.getClass().getName() + ": Could not " 
-                        + "determine the name for the current host. Using '"  
-                        + fullHostName + "' instead.");
-            }
+            fullHostName = HostIdentity.DEFAULT_HOST_NAME;
+            servletContext.log(this.getClass().getName() + ": Could not " 
+                    + "determine the name for the current host. Using '"  
+                    + fullHostName + "' instead.");
         }
         return fullHostName;
     }
@@ -28,19 +28,36 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
+import javax.servlet.http.HttpSession;
 
 /**
  * {@link Filter} implementation which prevents the session id from being
  * encoded in the URL. 
+ * <p>
+ * The request is only wrapped if the session id was passed in the URL and the
+ * response is only wrapped if the container could encode the session id in 
+ * URLs. Requests belonging to an existing session which was requested using
+ * a cookie pass through unwrapped.
+ * </p>
+ * <p>
+ * Requests can be excluded from this filter using the 
+ * <code>disable-for-paths</code> init parameter which takes a comma or
+ * whitespace separated list of paths which are matched against the servlet
+ * path and path info. Each path is either an exact path, a prefix like
+ * <code>/api/*</code> (which also matches <code>/api</code>) or a suffix like
+ * <code>*.json</code>. The <code>disable-for-path-pattern</code> init 
+ * parameter takes a regular expression which is matched against the servlet
+ * path of requests which don't match any of the
+ * <code>disable-for-paths</code> paths.
+ * </p>
  *
  * @author Niklas Therning
  * @version $Id$
  */
 public class DisableSessionIdInUrlFilter implements Filter {
-    private static final String SESSION_ID_REG_EXP = "(?i);jsessionid=[0-9a-z]+";
-    private static final Pattern SESSION_ID_PATTERN = 
-        Pattern.compile(SESSION_ID_REG_EXP);
+    private static final String SESSION_ID_PREFIX = ";jsessionid=";
 
+    private PathTrie disableForPaths = new PathTrie();
     private Pattern disableForPathPattern = null;
     
     public void doFilter(ServletRequest req, ServletResponse res,
@@ -51,17 +68,62 @@ public class DisableSessionIdInUrlFilter implements Filter {
         HttpServletResponse response = (HttpServletResponse) res;
         
         /*Do not remove session id from API requests.*/
-        String path = request.getServletPath();
-        if (path == null || disableForPathPattern == null || (!disableForPathPattern.matcher(path).matches())) {
-            request = new RequestWrapper(request);
-            response = new ResponseWrapper(response);
+        if (!isDisabledFor(request)) {
+            if (request.isRequestedSessionIdFromURL() 
+                    || indexOfSessionId(request.getRequestURI()) != -1) {
+                request = new RequestWrapper(request);
+            }
+            if (mayEncodeSessionId(request)) {
+                response = new ResponseWrapper(response);
+            }
         }
         chain.doFilter(request, response);
     }
 
+    /**
+     * Returns <code>false</code> if the container won't encode the session id
+     * in URLs, i.e. if there is an existing session which was requested 
+     * using a cookie.
+     */
+    private static boolean mayEncodeSessionId(HttpServletRequest request) {
+        if (!request.isRequestedSessionIdFromCookie() || !request.isRequestedSessionIdValid()) {
+            return true;
+        }
+        HttpSession session = request.getSession(false);
+        return session == null || session.isNew();
+    }
+
+    private boolean isDisabledFor(HttpServletRequest request) {
+        String servletPath = request.getServletPath();
+        if (servletPath == null) {
+            return false;
+        }
+        if (!disableForPaths.isEmpty()) {
+            String pathInfo = request.getPathInfo();
+            if (disableForPaths.matches(pathInfo == null ? servletPath : servletPath + pathInfo)) {
+                return true;
+            }
+        }
+        return disableForPathPattern != null && disableForPathPattern.matcher(servletPath).matches();
+    }
+
     public void init(FilterConfig fc) throws ServletException {
+        PathTrie paths = new PathTrie();
+        String list = fc.getInitParameter("disable-for-paths");
+        if (list != null) {
+            for (String glob : list.trim().split("[,\\s]+")) {
+                if (glob.length() > 0) {
+                    try {
+                        paths.add(glob);
+                    } catch (IllegalArgumentException e) {
+                        throw new ServletException(e.getMessage());
+                    }
+                }
+            }
+        }
+        disableForPaths = paths;
         String pattern = fc.getInitParameter("disable-for-path-pattern");
-        disableForPathPattern = Pattern.compile(pattern);
+        disableForPathPattern = pattern == null ? null : Pattern.compile(pattern);
     }
     
     public void destroy() {}
@@ -91,9 +153,48 @@ public class DisableSessionIdInUrlFilter implements Filter {
             }
             return requestUri;
         }
-        private String removeSessionId(String s) {
-            return SESSION_ID_PATTERN.matcher(s).replaceFirst("");
+    }
+    
+    /**
+     * Returns the index of the first <code>;jsessionid=</code> (in any case) 
+     * followed by at least one letter or digit in the specified string or 
+     * <code>-1</code> if there is none.
+     */
+    static int indexOfSessionId(String s) {
+        if (s == null) {
+            return -1;
+        }
+        int i = s.indexOf(';');
+        while (i != -1) {
+            int end = i + SESSION_ID_PREFIX.length();
+            if (end < s.length() && s.regionMatches(true, i, SESSION_ID_PREFIX, 0, SESSION_ID_PREFIX.length())
+                    && isIdChar(s.charAt(end))) {
+                return i;
+            }
+            i = s.indexOf(';', i + 1);
         }
+        return -1;
+    }
+    
+    /**
+     * Removes the first session id from the specified string. Returns the
+     * same instance if there is none.
+     */
+    static String removeSessionId(String s) {
+        int start = indexOfSessionId(s);
+        if (start == -1) {
+            return s;
+        }
+        int end = start + SESSION_ID_PREFIX.length();
+        while (end < s.length() && isIdChar(s.charAt(end))) {
+            end++;
+        }
+        return new StringBuilder(s.length() - (end - start))
+            .append(s, 0, start).append(s, end, s.length()).toString();
+    }
+    
+    private static boolean isIdChar(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
     }
     
     private static class ResponseWrapper extends HttpServletResponseWrapper {
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies.web;
+
+/**
+ * Matches paths against a set of exact paths, path prefixes and path
+ * suffixes. Paths are added using a simple glob syntax:
+ * <ul>
+ *   <li><code>/api/*</code> matches <code>/api</code> and all paths
+ *       starting with <code>/api/</code> like a servlet url-pattern.</li>
+ *   <li><code>*.json</code> matches all paths ending with
+ *       <code>.json</code>.</li>
+ *   <li>Anything else, e.g. <code>/status</code>, matches that path
+ *       exactly.</li>
+ * </ul>
+ * Prefixes and exact paths are kept in one trie and suffixes in another trie
+ * built from the reversed suffixes. Matching a path walks each trie at most
+ * once and never allocates. Instances are not thread-safe while being built
+ * but can be shared once all paths have been added.
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+class PathTrie {
+    private final Node prefixes = new Node();
+    private final Node suffixes = new Node();
+    private boolean empty = true;
+
+    /**
+     * Adds a path to be matched.
+     *
+     * @param glob the path using the syntax described above.
+     * @throws IllegalArgumentException if the path contains a <code>*</code>
+     *         anywhere but at its start or end.
+     */
+    public void add(String glob) {
+        int star = glob.indexOf('*');
+        if (star != -1 && star != 0 && star != glob.length() - 1
+                || star != glob.lastIndexOf('*')) {
+            throw new IllegalArgumentException("Unsupported path '" + glob
+                    + "'. Only a leading or trailing '*' is allowed.");
+        }
+        if (star == 0) {
+            Node node = suffixes;
+            for (int i = glob.length() - 1; i > 0; i--) {
+                node = node.getOrAdd(glob.charAt(i));
+            }
+            node.terminal = true;
+        } else if (star != -1) {
+            Node node = prefixes;
+            for (int i = 0; i < star; i++) {
+                if (i == star - 1 && glob.charAt(i) == '/' && i > 0) {
+                    node.terminal = true;
+                }
+                node = node.getOrAdd(glob.charAt(i));
+            }
+            node.prefix = true;
+        } else {
+            Node node = prefixes;
+            for (int i = 0; i < glob.length(); i++) {
+                node = node.getOrAdd(glob.charAt(i));
+            }
+            node.terminal = true;
+        }
+        empty = false;
+    }
+
+    /**
+     * Returns <code>true</code> if no paths have been added.
+     */
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * Returns <code>true</code> if the specified path matches any of the
+     * added paths.
+     */
+    public boolean matches(String path) {
+        int length = path.length();
+        Node node = prefixes;
+        for (int i = 0; node != null; i++) {
+            if (node.prefix) {
+                return true;
+            }
+            if (i == length) {
+                if (node.terminal) {
+                    return true;
+                }
+                break;
+            }
+            node = node.get(path.charAt(i));
+        }
+        node = suffixes;
+        for (int i = length - 1; node != null; i--) {
+            if (node.terminal) {
+                return true;
+            }
+            if (i < 0) {
+                break;
+            }
+            node = node.get(path.charAt(i));
+        }
+        return false;
+    }
+
+    private static class Node {
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private boolean terminal;
+        private boolean prefix;
+
+        Node get(char c) {
+            char[] keys = this.keys;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node getOrAdd(char c) {
+            Node child = get(c);
+            if (child == null) {
+                int n = keys.length;
+                char[] newKeys = new char[n + 1];
+                Node[] newChildren = new Node[n + 1];
+                System.arraycopy(keys, 0, newKeys, 0, n);
+                System.arraycopy(children, 0, newChildren, 0, n);
+                child = new Node();
+                newKeys[n] = c;
+                newChildren[n] = child;
+                keys = newKeys;
+                children = newChildren;
+            }
+            return child;
+        }
+    }
+}
@@ -0,0 +1,416 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies.web;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link Filter} which serves static files directly from the file system
+ * without passing the request on down the filter chain. Map it before any
+ * other filters to keep asset requests from ever reaching the web framework.
+ * <p>
+ * Supports conditional requests using <code>ETag</code> and
+ * <code>Last-Modified</code>. Compressible files (<code>text/*</code>,
+ * JavaScript, JSON and XML) up to <code>max-compressed-file-size</code>
+ * bytes are served gzip or deflate compressed if the client accepts it. The
+ * compressed copies are kept in an LRU cache which is bounded to
+ * <code>cache-size</code> bytes. All other files are streamed using
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
+ * Files below <code>/WEB-INF/</code> and <code>/META-INF/</code> are never
+ * served.
+ * </p>
+ * <p>
+ * Init parameters:
+ * <ul>
+ *   <li><code>paths</code> &ndash; comma or whitespace separated list of
+ *       servlet paths to serve, e.g. <code>/static/*, *.css, *.js,
+ *       /favicon.ico</code>. See {@link DisableSessionIdInUrlFilter} for the
+ *       syntax. Required.</li>
+ *   <li><code>root</code> &ndash; the directory to serve files from.
+ *       Defaults to the real path of the web application.</li>
+ *   <li><code>cache-size</code> &ndash; the maximum number of bytes of
+ *       compressed files to cache. Default is 16 MB.</li>
+ *   <li><code>max-compressed-file-size</code> &ndash; larger files are
+ *       never compressed. Default is 512 kB.</li>
+ *   <li><code>max-age</code> &ndash; if set the <code>Cache-Control</code>
+ *       <code>max-age</code> in seconds sent with every response.</li>
+ * </ul>
+ * </p>
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+public class StaticResourceFilter implements Filter {
+    private static final Logger log = LoggerFactory.getLogger(StaticResourceFilter.class);
+
+    private static final String GZIP = "gzip";
+    private static final String DEFLATE = "deflate";
+
+    private PathTrie paths;
+    private File root;
+    private ServletContext servletContext;
+    private long maxCompressedFileSize = 512 * 1024;
+    private String cacheControl = null;
+    private CompressedCache cache;
+
+    public void init(FilterConfig fc) throws ServletException {
+        servletContext = fc.getServletContext();
+        String list = fc.getInitParameter("paths");
+        if (list == null) {
+            throw new ServletException("Init parameter 'paths' is required");
+        }
+        paths = new PathTrie();
+        for (String glob : list.trim().split("[,\\s]+")) {
+            if (glob.length() > 0) {
+                try {
+                    paths.add(glob);
+                } catch (IllegalArgumentException e) {
+                    throw new ServletException(e.getMessage());
+                }
+            }
+        }
+        String rootPath = fc.getInitParameter("root");
+        if (rootPath == null) {
+            rootPath = servletContext.getRealPath("/");
+            if (rootPath == null) {
+                throw new ServletException("Init parameter 'root' is required "
+                        + "when the web application isn't deployed as a directory");
+            }
+        }
+        root = new File(rootPath);
+        cache = new CompressedCache(getLongParameter(fc, "cache-size", 16 * 1024 * 1024));
+        maxCompressedFileSize = getLongParameter(fc, "max-compressed-file-size", maxCompressedFileSize);
+        String maxAge = fc.getInitParameter("max-age");
+        if (maxAge != null) {
+            cacheControl = "max-age=" + getLongParameter(fc, "max-age", 0);
+        }
+        log.info("Serving static resources matching '" + list.trim() + "' from " + root);
+    }
+
+    private static long getLongParameter(FilterConfig fc, String name, long defaultValue)
+            throws ServletException {
+
+        String value = fc.getInitParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new ServletException("Illegal value for init parameter '"
+                    + name + "': " + value);
+        }
+    }
+
+    public void destroy() {
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    public void doFilter(ServletRequest req, ServletResponse res,
+                         FilterChain chain)
+            throws IOException, ServletException {
+
+        HttpServletRequest request = (HttpServletRequest) req;
+        HttpServletResponse response = (HttpServletResponse) res;
+
+        String path = request.getServletPath();
+        if (request.getPathInfo() != null) {
+            path += request.getPathInfo();
+        }
+        String method = request.getMethod();
+        boolean head = "HEAD".equals(method);
+        if (!head && !"GET".equals(method) || !paths.matches(path)) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        File file = isSafe(path) ? new File(root, path) : null;
+        if (file == null || !file.isFile()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        long length = file.length();
+        long lastModified = file.lastModified() / 1000 * 1000;
+        String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+        // Weak since the same tag is used for the compressed representations
+        response.setHeader("ETag", "W/" + etag);
+        response.setDateHeader("Last-Modified", lastModified);
+        if (cacheControl != null) {
+            response.setHeader("Cache-Control", cacheControl);
+        }
+        String contentType = servletContext.getMimeType(file.getName());
+        boolean compressible = length <= maxCompressedFileSize && isCompressible(contentType);
+        if (compressible) {
+            // Also on 304 responses so caches know the variants differ
+            response.setHeader("Vary", "Accept-Encoding");
+        }
+        if (isNotModified(request, etag, lastModified)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        if (contentType != null) {
+            response.setContentType(contentType);
+        }
+
+        if (compressible) {
+            String acceptEncoding = request.getHeader("Accept-Encoding");
+            String encoding = accepts(acceptEncoding, GZIP) ? GZIP
+                    : accepts(acceptEncoding, DEFLATE) ? DEFLATE : null;
+            if (encoding != null) {
+                byte[] data = getCompressed(file, path, encoding, length, lastModified);
+                if (data != null) {
+                    response.setHeader("Content-Encoding", encoding);
+                    response.setContentLength(data.length);
+                    if (!head) {
+                        response.getOutputStream().write(data);
+                    }
+                    return;
+                }
+            }
+        }
+
+        if (length <= Integer.MAX_VALUE) {
+            response.setContentLength((int) length);
+        } else {
+            response.setHeader("Content-Length", Long.toString(length));
+        }
+        if (!head) {
+            transfer(file, length, response.getOutputStream());
+        }
+    }
+
+    /**
+     * Returns the compressed contents of the specified file, either from the
+     * cache or by compressing it. Returns <code>null</code> if the
+     * compressed contents aren't smaller than the file.
+     */
+    private byte[] getCompressed(File file, String path, String encoding,
+            long length, long lastModified) throws IOException {
+
+        String key = encoding + ':' + path;
+        CompressedEntry entry = cache.get(key);
+        if (entry == null || entry.length != length || entry.lastModified != lastModified) {
+            byte[] data = compress(file, encoding, length);
+            entry = new CompressedEntry(length, lastModified, data.length < length ? data : null);
+            cache.put(key, entry);
+        }
+        return entry.data;
+    }
+
+    private static byte[] compress(File file, String encoding, long length) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream((int) length / 2 + 64);
+        OutputStream out = GZIP.equals(encoding)
+                ? new GZIPOutputStream(baos) : new DeflaterOutputStream(baos);
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        out.close();
+        return baos.toByteArray();
+    }
+
+    private static void transfer(File file, long length, OutputStream out) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            WritableByteChannel target = Channels.newChannel(out);
+            long position = 0;
+            while (position < length) {
+                long n = channel.transferTo(position, length - position, target);
+                if (n <= 0) {
+                    break;
+                }
+                position += n;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the request's <code>If-None-Match</code>
+     * or, if not present, <code>If-Modified-Since</code> header shows that
+     * the client already has the current version of the file.
+     */
+    private static boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals(etag) || tag.equals("*")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        try {
+            long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+            return ifModifiedSince != -1 && ifModifiedSince >= lastModified;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the specified <code>Accept-Encoding</code>
+     * header accepts the specified encoding with a non-zero quality.
+     */
+    static boolean accepts(String acceptEncoding, String encoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String part : acceptEncoding.split(",")) {
+            int semi = part.indexOf(';');
+            String name = (semi == -1 ? part : part.substring(0, semi)).trim();
+            if (name.equalsIgnoreCase(encoding)) {
+                if (semi == -1) {
+                    return true;
+                }
+                String param = part.substring(semi + 1).trim();
+                if (!param.startsWith("q=")) {
+                    return true;
+                }
+                try {
+                    return Double.parseDouble(param.substring(2).trim()) > 0.0;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isCompressible(String contentType) {
+        return contentType != null && (contentType.startsWith("text/")
+                || contentType.indexOf("javascript") != -1
+                || contentType.indexOf("json") != -1
+                || contentType.indexOf("xml") != -1);
+    }
+
+    /**
+     * Rejects paths which could escape the root directory or which point
+     * into <code>/WEB-INF/</code> or <code>/META-INF/</code>.
+     */
+    private static boolean isSafe(String path) {
+        if (path.indexOf('\\') != -1 || path.indexOf("/../") != -1
+                || path.endsWith("/..") || path.indexOf('\0') != -1) {
+            return false;
+        }
+        String upper = path.toUpperCase(Locale.ENGLISH) + "/";
+        return upper.indexOf("/WEB-INF/") == -1 && upper.indexOf("/META-INF/") == -1;
+    }
+
+    private static class CompressedEntry {
+        /**
+         * Approximate per entry overhead. Also makes sure entries of files
+         * which don't compress, and thus have no data, are evicted.
+         */
+        private static final int OVERHEAD = 128;
+
+
+        private final long length;
+        private final long lastModified;
+        private final byte[] data;
+
+        public CompressedEntry(long length, long lastModified, byte[] data) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.data = data;
+        }
+
+        int size() {
+            return data == null ? OVERHEAD : OVERHEAD + data.length;
+        }
+    }
+
+    /**
+     * LRU cache of compressed files bounded by the total number of bytes.
+     */
+    private static class CompressedCache {
+        private final long maxSize;
+        private long size = 0;
+        private final LinkedHashMap<String, CompressedEntry> entries =
+            new LinkedHashMap<String, CompressedEntry>(16, 0.75f, true);
+
+        public CompressedCache(long maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        public synchronized CompressedEntry get(String key) {
+            return entries.get(key);
+        }
+
+        public synchronized void put(String key, CompressedEntry entry) {
+            if (entry.size() > maxSize) {
+                return;
+            }
+            CompressedEntry old = entries.put(key, entry);
+            if (old != null) {
+                size -= old.size();
+            }
+            size += entry.size();
+            Iterator<Map.Entry<String, CompressedEntry>> it = entries.entrySet().iterator();
+            while (size > maxSize && it.hasNext()) {
+                size -= it.next().getValue().size();
+                it.remove();
+            }
+        }
+
+        public synchronized void clear() {
+            entries.clear();
+            size = 0;
+        }
+    }
+}
@@ -11,6 +11,7 @@ package se.trillian.goodies.ehcache;
 
 import java.net.InetAddress;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import junit.framework.TestCase;
@@ -60,6 +61,50 @@ public class RMICacheManagerPeerProviderFactoryTest extends TestCase {
         }
     }
     
+    public void testParseCacheGroups() throws Exception {
+        Map<String, String> groups = RMICacheManagerPeerProviderFactory.parseCacheGroups("sessions=cache1|cache2; reference = cache3");
+        assertEquals(3, groups.size());
+        assertEquals("sessions", groups.get("cache1"));
+        assertEquals("sessions", groups.get("cache2"));
+        assertEquals("reference", groups.get("cache3"));
+        assertTrue(RMICacheManagerPeerProviderFactory.parseCacheGroups(null).isEmpty());
+        
+        try {
+            RMICacheManagerPeerProviderFactory.parseCacheGroups("sessions=cache1;reference=cache1");
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            RMICacheManagerPeerProviderFactory.parseCacheGroups("sessions");
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+    
+    public void testParsePeerGroups() throws Exception {
+        Map<InetAddress, Set<String>> groups = RMICacheManagerPeerProviderFactory.parsePeerGroups("127.0.0.1=sessions|reference;127.0.0.2=reference");
+        assertEquals(2, groups.size());
+        assertEquals(2, groups.get(InetAddress.getByName("127.0.0.1")).size());
+        assertTrue(groups.get(InetAddress.getByName("127.0.0.1")).contains("sessions"));
+        assertTrue(groups.get(InetAddress.getByName("127.0.0.1")).contains("reference"));
+        assertEquals(1, groups.get(InetAddress.getByName("127.0.0.2")).size());
+        assertTrue(groups.get(InetAddress.getByName("127.0.0.2")).contains("reference"));
+    }
+    
+    public void testCacheGroups() throws Exception {
+        CacheGroups cacheGroups = new CacheGroups(
+                RMICacheManagerPeerProviderFactory.parseCacheGroups("sessions=cache1;reference=cache2"), 
+                RMICacheManagerPeerProviderFactory.parsePeerGroups("127.0.0.1=sessions"));
+        InetAddress peer1 = InetAddress.getByName("127.0.0.1");
+        InetAddress peer2 = InetAddress.getByName("127.0.0.2");
+        assertTrue(cacheGroups.isAdvertised("cache1", peer1));
+        assertFalse(cacheGroups.isAdvertised("cache2", peer1));
+        assertTrue(cacheGroups.isAdvertised("cache3", peer1));
+        assertTrue(cacheGroups.isAdvertised("cache1", peer2));
+        assertTrue(cacheGroups.isAdvertised("cache2", peer2));
+        assertTrue(cacheGroups.isAdvertised("cache3", peer2));
+    }
+    
     public void testDistributedCaching() throws Exception {
         CacheManager man1 = new CacheManager(getClass().getResource("ehcache.xml"));
         ((UnicastRMICacheManagerPeerProvider) man1.getCacheManagerPeerProvider("RMI")).getHeartBeatSender().setHeartbeatInterval(1000);
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies.spring;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.beans.factory.support.ManagedList;
+import org.springframework.beans.factory.support.RootBeanDefinition;
+import org.springframework.beans.factory.xml.XmlBeanDefinitionReader;
+import org.springframework.context.annotation.ScannedGenericBeanDefinition;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.core.type.classreading.SimpleMetadataReaderFactory;
+
+/**
+ * Tests {@link BeanDefinitionSnapshot}.
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+public class BeanDefinitionSnapshotTest extends TestCase {
+
+    @SuppressWarnings("unchecked")
+    public void testSaveAndLoad() throws Exception {
+        Resource[] resources = new Resource[] {new ClassPathResource("context.xml", getClass())};
+        DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+        new XmlBeanDefinitionReader(beanFactory).loadBeanDefinitions(resources);
+        beanFactory.registerAlias("fruits", "moreFruits");
+
+        File file = File.createTempFile("snapshot", ".bin");
+        try {
+            BeanDefinitionSnapshot snapshot = new BeanDefinitionSnapshot(file);
+            String fingerprint = BeanDefinitionSnapshot.fingerprint(resources);
+            assertTrue(snapshot.save(fingerprint, beanFactory));
+
+            DefaultListableBeanFactory restored = new DefaultListableBeanFactory();
+            assertFalse(snapshot.load("other", restored));
+            assertEquals(0, restored.getBeanDefinitionCount());
+            assertTrue(snapshot.load(fingerprint, restored));
+            assertEquals(beanFactory.getBeanDefinitionCount(), restored.getBeanDefinitionCount());
+
+            Map<String, String> fruits = (Map<String, String>) restored.getBean("moreFruits");
+            assertEquals(6, fruits.size());
+            assertEquals("${fruit1}", fruits.get("fruit1"));
+            assertEquals(beanFactory.getBean("hostname"), restored.getBean("hostname"));
+        } finally {
+            file.delete();
+        }
+    }
+    
+    public void testChangedImportInvalidatesSnapshot() throws Exception {
+        File imported = File.createTempFile("imported", ".xml");
+        File file = File.createTempFile("snapshot", ".bin");
+        try {
+            write(imported, "<beans/>");
+            DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+            beanFactory.registerBeanDefinition("bean", new RootBeanDefinition(Object.class));
+            BeanDefinitionSnapshot snapshot = new BeanDefinitionSnapshot(file);
+            assertTrue(snapshot.save("fingerprint", 
+                    new Resource[] {new FileSystemResource(imported)}, beanFactory));
+            assertTrue(snapshot.load("fingerprint", new DefaultListableBeanFactory()));
+            
+            write(imported, "<beans><bean class=\"java.lang.Object\"/></beans>");
+            assertFalse(snapshot.load("fingerprint", new DefaultListableBeanFactory()));
+            imported.delete();
+            assertFalse(snapshot.load("fingerprint", new DefaultListableBeanFactory()));
+        } finally {
+            imported.delete();
+            file.delete();
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    public void testUnsupportedBeanDefinition() throws Exception {
+        RootBeanDefinition bd = new RootBeanDefinition(Object.class);
+        assertTrue(BeanDefinitionSnapshot.canSnapshot(bd));
+        bd.getPropertyValues().addPropertyValue("value", new Object());
+        assertFalse(BeanDefinitionSnapshot.canSnapshot(bd));
+        
+        ManagedList list = new ManagedList();
+        list.add(new RootBeanDefinition(Object.class));
+        RootBeanDefinition nested = new RootBeanDefinition(Object.class);
+        nested.getPropertyValues().addPropertyValue("list", list);
+        assertTrue(BeanDefinitionSnapshot.canSnapshot(nested));
+        nested.setAttribute("attribute", "value");
+        assertFalse(BeanDefinitionSnapshot.canSnapshot(nested));
+        
+        File file = File.createTempFile("snapshot", ".bin");
+        try {
+            DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+            beanFactory.registerBeanDefinition("bean", bd);
+            assertFalse(new BeanDefinitionSnapshot(file).save("fingerprint", beanFactory));
+            assertEquals(0, file.length());
+        } finally {
+            file.delete();
+        }
+    }
+    
+    public void testScannedBeanDefinitionNotSupported() throws Exception {
+        ScannedGenericBeanDefinition bd = new ScannedGenericBeanDefinition(
+                new SimpleMetadataReaderFactory().getMetadataReader(Object.class.getName()));
+        assertFalse(BeanDefinitionSnapshot.canSnapshot(bd));
+        
+        File file = File.createTempFile("snapshot", ".bin");
+        try {
+            DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+            beanFactory.registerBeanDefinition("plain", new RootBeanDefinition(Object.class));
+            beanFactory.registerBeanDefinition("scanned", bd);
+            assertFalse(new BeanDefinitionSnapshot(file).save("fingerprint", beanFactory));
+            assertEquals(0, file.length());
+        } finally {
+            file.delete();
+        }
+    }
+    
+    private static void write(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+}
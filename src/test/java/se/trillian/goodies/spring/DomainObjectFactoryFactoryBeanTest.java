@@ -15,8 +15,7 @@
  */
 package se.trillian.goodies.spring;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.lang.reflect.Proxy;
 
 import junit.framework.AssertionFailedError;
 
@@ -42,10 +41,12 @@ public class DomainObjectFactoryFactoryBeanTest extends RMockTestCase {
 
     public void testCreateFactoryConstructor1() throws Exception {
         ListableBeanFactory beanFactory = (ListableBeanFactory) mock(ListableBeanFactory.class);
-        beanFactory.getBeansOfType(A.class);
-        Map<String, Object> beans = new HashMap<String, Object>();
-        beans.put("a", new A());
-        modify().returnValue(beans);
+        beanFactory.getBeanNamesForType(A.class);
+        modify().returnValue(new String[] {"a"});
+        beanFactory.isSingleton("a");
+        modify().returnValue(true);
+        beanFactory.getBean("a");
+        modify().returnValue(new A());
         
         startVerification();
         
@@ -59,10 +60,12 @@ public class DomainObjectFactoryFactoryBeanTest extends RMockTestCase {
     
     public void testCreateFactoryConstructor2() throws Exception {
         ListableBeanFactory beanFactory = (ListableBeanFactory) mock(ListableBeanFactory.class);
-        beanFactory.getBeansOfType(B.class);
-        Map<String, Object> beans = new HashMap<String, Object>();
-        beans.put("b", new B());
-        modify().returnValue(beans);
+        beanFactory.getBeanNamesForType(B.class);
+        modify().returnValue(new String[] {"b"});
+        beanFactory.isSingleton("b");
+        modify().returnValue(true);
+        beanFactory.getBean("b");
+        modify().returnValue(new B());
         
         startVerification();
         
@@ -76,10 +79,12 @@ public class DomainObjectFactoryFactoryBeanTest extends RMockTestCase {
     
     public void testCreateFactoryConstructor3() throws Exception {
         ListableBeanFactory beanFactory = (ListableBeanFactory) mock(ListableBeanFactory.class);
-        beanFactory.getBeansOfType(C.class);
-        Map<String, Object> beans = new HashMap<String, Object>();
-        beans.put("c", new C());
-        modify().returnValue(beans);
+        beanFactory.getBeanNamesForType(C.class);
+        modify().returnValue(new String[] {"c"});
+        beanFactory.isSingleton("c");
+        modify().returnValue(true);
+        beanFactory.getBean("c");
+        modify().returnValue(new C());
         
         startVerification();
         
@@ -104,6 +109,104 @@ public class DomainObjectFactoryFactoryBeanTest extends RMockTestCase {
         assertNull(impl.dependency);
     }
     
+    public void testSingletonDependencyResolvedOnce() throws Exception {
+        ListableBeanFactory beanFactory = (ListableBeanFactory) mock(ListableBeanFactory.class);
+        beanFactory.getBeanNamesForType(A.class);
+        modify().returnValue(new String[] {"a"});
+        beanFactory.isSingleton("a");
+        modify().returnValue(true);
+        beanFactory.getBean("a");
+        A a = new A();
+        modify().returnValue(a);
+        
+        startVerification();
+        
+        factoryBean.afterPropertiesSet();
+        factoryBean.setBeanFactory(beanFactory);
+        Interface.Factory factory = (Interface.Factory) factoryBean.getObject();
+        assertSame(a, ((Implementation) factory.create("1")).dependency);
+        assertSame(a, ((Implementation) factory.create("2")).dependency);
+    }
+    
+    public void testPrototypeDependency() throws Exception {
+        ListableBeanFactory beanFactory = (ListableBeanFactory) mock(ListableBeanFactory.class);
+        beanFactory.getBeanNamesForType(A.class);
+        modify().returnValue(new String[] {"a"});
+        beanFactory.isSingleton("a");
+        modify().returnValue(false);
+        beanFactory.getBean("a");
+        modify().multiplicity(expect.exactly(2)).returnValue(new A());
+        
+        startVerification();
+        
+        factoryBean.afterPropertiesSet();
+        factoryBean.setBeanFactory(beanFactory);
+        Interface.Factory factory = (Interface.Factory) factoryBean.getObject();
+        factory.create("1");
+        factory.create("2");
+    }
+    
+    public void testGeneratedFactory() throws Exception {
+        ListableBeanFactory beanFactory = (ListableBeanFactory) mock(ListableBeanFactory.class);
+        beanFactory.getBeanNamesForType(A.class);
+        modify().returnValue(new String[] {"a"});
+        beanFactory.isSingleton("a");
+        modify().returnValue(true);
+        beanFactory.getBean("a");
+        modify().returnValue(new A());
+        
+        startVerification();
+        
+        factoryBean.setGenerateFactory(true);
+        factoryBean.afterPropertiesSet();
+        factoryBean.setBeanFactory(beanFactory);
+        Interface.Factory factory = (Interface.Factory) factoryBean.getObject();
+        assertFalse(Proxy.isProxyClass(factory.getClass()));
+        Implementation impl = (Implementation) factory.create("Hello world!!!");
+        assertEquals("Hello world!!!", impl.s);
+        assertThat(impl.dependency, is.instanceOf(A.class));
+        impl = (Implementation) factory.create(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, impl.l);
+        assertNull(impl.dependency);
+        factory.toString();
+        assertTrue(factory.equals(factory));
+        factory.hashCode();
+    }
+    
+    public void testRecycling() throws Exception {
+        assertRecycling(false);
+    }
+    
+    public void testRecyclingGeneratedFactory() throws Exception {
+        assertRecycling(true);
+    }
+    
+    private void assertRecycling(boolean generateFactory) throws Exception {
+        factoryBean.setImplementationClass(RecyclableImplementation.class);
+        factoryBean.setFactoryClass(RecyclingFactory.class);
+        factoryBean.setRecycling(true);
+        factoryBean.setGenerateFactory(generateFactory);
+        factoryBean.afterPropertiesSet();
+        RecyclingFactory factory = (RecyclingFactory) factoryBean.getObject();
+        RecyclableImplementation impl1 = (RecyclableImplementation) factory.create("1");
+        assertEquals("1", impl1.s);
+        factory.release(impl1);
+        RecyclableImplementation impl2 = (RecyclableImplementation) factory.create("2");
+        assertSame(impl1, impl2);
+        assertEquals("2", impl2.s);
+        assertNotSame(impl2, factory.create("3"));
+    }
+    
+    public void testRecyclingRequiresRecyclable() throws Exception {
+        factoryBean.setFactoryClass(RecyclingFactory.class);
+        factoryBean.setRecycling(true);
+        try {
+            factoryBean.afterPropertiesSet();
+            fail("Not Recyclable. IllegalArgumentException expected.");
+        } catch (IllegalArgumentException iae) {
+        }
+    }
+    
     public void testObjectMethods() throws Exception {
         factoryBean.afterPropertiesSet();
         Interface.Factory factory = (Interface.Factory) factoryBean.getObject();
@@ -166,6 +269,10 @@ public class DomainObjectFactoryFactoryBeanTest extends RMockTestCase {
         }
     }
 
+    public interface RecyclingFactory {
+        Interface create(String s);
+        void release(Interface o);
+    }
     interface EmptyFactory {
     }
     interface InvalidFactory1 {
@@ -207,6 +314,16 @@ public class DomainObjectFactoryFactoryBeanTest extends RMockTestCase {
         }
     }
     
+    public static class RecyclableImplementation implements Interface, Recyclable {
+        public String s;
+        public RecyclableImplementation(String s) {
+            this.s = s;
+        }
+        public void reset(Object[] args) {
+            this.s = (String) args[0];
+        }
+    }
+    
     public abstract static class Dependency {
     }
     
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies.spring;
+
+import junit.framework.TestCase;
+
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+
+import se.trillian.goodies.spring.scan.Account;
+
+/**
+ * Tests {@link DomainObjectFactoryScanner}.
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+public class DomainObjectFactoryScannerTest extends TestCase {
+
+    public void testScan() throws Exception {
+        DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+        DomainObjectFactoryScanner scanner = new DomainObjectFactoryScanner();
+        scanner.setBasePackages(new String[] {"se.trillian.goodies.spring.scan"});
+        scanner.postProcessBeanFactory(beanFactory);
+        
+        assertEquals(1, beanFactory.getBeanDefinitionCount());
+        Account.Factory factory = (Account.Factory) beanFactory.getBean("accountFactory");
+        assertEquals("foo", factory.create("foo").getName());
+    }
+}
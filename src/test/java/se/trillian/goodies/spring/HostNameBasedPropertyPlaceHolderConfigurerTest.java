@@ -15,14 +15,23 @@
  */
 package se.trillian.goodies.spring;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
 
 import junit.framework.TestCase;
 
 import org.springframework.context.support.ClassPathXmlApplicationContext;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.util.DefaultPropertiesPersister;
 
 /**
  * Tests {@link HostNameBasedPropertyPlaceHolderConfigurer}.
@@ -64,5 +73,181 @@ public class HostNameBasedPropertyPlaceHolderConfigurerTest extends TestCase {
         assertEquals("foobar-10", hostname.get("hostname1"));
         assertEquals("foobar-10", hostname.get("hostname2"));
     }
+
+    public void testLocationResolver() throws Exception {
+        List<HostNameBasedPropertyPlaceHolderConfigurer.Filter> filters = 
+            new ArrayList<HostNameBasedPropertyPlaceHolderConfigurer.Filter>();
+        filters.add(new HostNameBasedPropertyPlaceHolderConfigurer.Filter("^([a-zA-Z]+).*", "$1"));
+        filters.add(new HostNameBasedPropertyPlaceHolderConfigurer.Filter("^([a-zA-Z]+)-([a-zA-Z]+).*", "$1-$2"));
+        filters.add(new HostNameBasedPropertyPlaceHolderConfigurer.Filter("^([a-zA-Z]+)[0-9]*", "$1"));
+        HostNameLocationResolver resolver = HostNameLocationResolver.getInstance("test-server1", filters);
+        assertSame(resolver, HostNameLocationResolver.getInstance("test-server1", filters));
+        
+        Resource[] locations = resolver.resolve(new Resource[] {
+                new FileSystemResource("/some/path/jdbc.props"), 
+                new FileSystemResource("/some/path/jdbc.props")});
+        assertEquals(8, locations.length);
+        assertEquals(new FileSystemResource("/some/path/jdbc-defaults.props"), locations[0]);
+        assertEquals(new FileSystemResource("/some/path/jdbc-defaults-test.props"), locations[1]);
+        assertEquals(new FileSystemResource("/some/path/jdbc-defaults-test-server.props"), locations[2]);
+        assertEquals(new FileSystemResource("/some/path/jdbc-defaults-test-server1.props"), locations[3]);
+        assertEquals(new FileSystemResource("/some/path/jdbc.props"), locations[4]);
+        assertEquals(new FileSystemResource("/some/path/jdbc-test.props"), locations[5]);
+        assertEquals(new FileSystemResource("/some/path/jdbc-test-server.props"), locations[6]);
+        assertEquals(new FileSystemResource("/some/path/jdbc-test-server1.props"), locations[7]);
+    }
+    
+    public void testFilesLoadedOncePerJvm() throws Exception {
+        File dir = File.createTempFile("shared", "");
+        dir.delete();
+        dir.mkdirs();
+        File defaults = new File(dir, "spring-defaults.properties");
+        File main = new File(dir, "spring.properties");
+        write(defaults, "fruit1=apple\nfruit2=pear\n");
+        write(main, "fruit2=plum\n");
+        
+        final int[] loads = new int[1];
+        try {
+            for (int i = 0; i < 2; i++) {
+                HostNameBasedPropertyPlaceHolderConfigurer configurer = 
+                    new HostNameBasedPropertyPlaceHolderConfigurer();
+                configurer.setLocation(new FileSystemResource(main));
+                configurer.setIgnoreUnresolvablePlaceholders(true);
+                configurer.setPropertiesPersister(new DefaultPropertiesPersister() {
+                    @Override
+                    public void load(Properties props, InputStream is) throws IOException {
+                        synchronized (loads) {
+                            loads[0]++;
+                        }
+                        super.load(props, is);
+                    }
+                });
+                ClassPathXmlApplicationContext context = 
+                    new ClassPathXmlApplicationContext("context.xml", this.getClass());
+                context.addBeanFactoryPostProcessor(configurer);
+                context.refresh();
+                Map<?, ?> fruits = (Map<?, ?>) context.getBean("fruits");
+                assertEquals("apple", fruits.get("fruit1"));
+                assertEquals("plum", fruits.get("fruit2"));
+                context.close();
+            }
+            assertEquals(2, loads[0]);
+        } finally {
+            defaults.delete();
+            main.delete();
+            dir.delete();
+        }
+    }
     
+    public void testFilesNotSharedBetweenPersisters() throws Exception {
+        File dir = File.createTempFile("persisters", "");
+        dir.delete();
+        dir.mkdirs();
+        File main = new File(dir, "spring.properties");
+        write(main, "fruit1=apple\n");
+        
+        final int[] loads = new int[2];
+        DefaultPropertiesPersister[] persisters = new DefaultPropertiesPersister[] {
+            new DefaultPropertiesPersister() {
+                @Override
+                public void load(Properties props, InputStream is) throws IOException {
+                    loads[0]++;
+                    super.load(props, is);
+                }
+            },
+            new DefaultPropertiesPersister() {
+                @Override
+                public void load(Properties props, InputStream is) throws IOException {
+                    loads[1]++;
+                    props.setProperty("fruit1", "lime");
+                }
+            }
+        };
+        try {
+            for (int i = 0; i < persisters.length; i++) {
+                HostNameBasedPropertyPlaceHolderConfigurer configurer = 
+                    new HostNameBasedPropertyPlaceHolderConfigurer();
+                configurer.setLocation(new FileSystemResource(main));
+                configurer.setIgnoreUnresolvablePlaceholders(true);
+                configurer.setPropertiesPersister(persisters[i]);
+                ClassPathXmlApplicationContext context = 
+                    new ClassPathXmlApplicationContext("context.xml", this.getClass());
+                context.addBeanFactoryPostProcessor(configurer);
+                context.refresh();
+                Map<?, ?> fruits = (Map<?, ?>) context.getBean("fruits");
+                assertEquals(i == 0 ? "apple" : "lime", fruits.get("fruit1"));
+                context.close();
+                configurer.destroy();
+            }
+            assertEquals(1, loads[0]);
+            assertEquals(1, loads[1]);
+        } finally {
+            main.delete();
+            dir.delete();
+        }
+    }
+    
+    public void testReload() throws Exception {
+        File dir = File.createTempFile("reload", "");
+        dir.delete();
+        dir.mkdirs();
+        File defaults = new File(dir, "spring-defaults.properties");
+        File hostSpecific = new File(dir, "spring-foobar-10.properties");
+        write(defaults, "fruit1=apple\nfruit2=pear\n");
+        write(hostSpecific, "fruit1=boquila\n");
+        
+        HostNameBasedPropertyPlaceHolderConfigurer configurer = 
+            new HostNameBasedPropertyPlaceHolderConfigurer() {
+            @Override
+            protected String getHostName() {
+                return "foobar-10";
+            }
+        };
+        configurer.setLocation(new FileSystemResource(new File(dir, "spring.properties")));
+        configurer.setIgnoreUnresolvablePlaceholders(true);
+        configurer.setReloadable(true);
+        configurer.setReloadInterval(3600000);
+        final List<Set<String>> notifications = new ArrayList<Set<String>>();
+        configurer.addReloadListener(new PropertiesReloadListener() {
+            public void propertiesReloaded(Properties properties, Set<String> changedKeys) {
+                notifications.add(changedKeys);
+                assertEquals("plum", properties.getProperty("fruit2"));
+            }
+        });
+        ClassPathXmlApplicationContext context = 
+            new ClassPathXmlApplicationContext("context.xml", this.getClass());
+        context.addBeanFactoryPostProcessor(configurer);
+        try {
+            context.refresh();
+            Map<?, ?> fruits = (Map<?, ?>) context.getBean("fruits");
+            assertEquals("boquila", fruits.get("fruit1"));
+            assertEquals("pear", fruits.get("fruit2"));
+            
+            assertTrue(configurer.reload().isEmpty());
+            
+            write(defaults, "fruit1=apple\nfruit2=plum\nfruit3=lime\n");
+            defaults.setLastModified(defaults.lastModified() - 10000);
+            Set<String> changedKeys = configurer.reload();
+            assertEquals(2, changedKeys.size());
+            assertTrue(changedKeys.contains("fruit2"));
+            assertTrue(changedKeys.contains("fruit3"));
+            assertEquals(1, notifications.size());
+            assertEquals(changedKeys, notifications.get(0));
+        } finally {
+            configurer.destroy();
+            context.close();
+            defaults.delete();
+            hostSpecific.delete();
+            dir.delete();
+        }
+    }
+    
+    private static void write(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("ISO-8859-1"));
+        } finally {
+            out.close();
+        }
+    }
 }
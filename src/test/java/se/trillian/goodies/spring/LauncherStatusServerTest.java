@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies.spring;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.springframework.context.support.GenericApplicationContext;
+
+/**
+ * Tests {@link LauncherStatusServer}.
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+public class LauncherStatusServerTest extends TestCase {
+
+    public void testStatus() throws Exception {
+        LauncherStatus status = new LauncherStatus();
+        LauncherStatusServer server = new LauncherStatusServer(status, 0);
+        try {
+            assertEquals(200, get(server, "/live"));
+            assertEquals(503, get(server, "/ready"));
+            assertEquals(404, get(server, "/other"));
+
+            Check check = new Check();
+            GenericApplicationContext context = new GenericApplicationContext();
+            context.getBeanFactory().registerSingleton("check", check);
+            context.refresh();
+            status.setContext(context);
+            status.setPhase(LauncherStatus.RUNNING);
+            assertEquals(503, get(server, "/ready"));
+            check.ready = true;
+            assertEquals(200, get(server, "/ready"));
+
+            HttpURLConnection conn = (HttpURLConnection) 
+                new URL("http://localhost:" + server.getPort() + "/stats").openConnection();
+            Properties stats = new Properties();
+            InputStream in = conn.getInputStream();
+            try {
+                stats.load(in);
+            } finally {
+                in.close();
+            }
+            assertEquals("RUNNING", stats.getProperty("phase"));
+            assertEquals("true", stats.getProperty("ready"));
+            assertNotNull(stats.getProperty("heap.used"));
+
+            status.setPhase(LauncherStatus.STOPPED);
+            assertEquals(503, get(server, "/live"));
+        } finally {
+            server.close();
+        }
+    }
+
+    public void testIdleClientDoesNotBlockProbes() throws Exception {
+        LauncherStatusServer server = new LauncherStatusServer(new LauncherStatus(), 0);
+        Socket idle = new Socket("localhost", server.getPort());
+        try {
+            long start = System.currentTimeMillis();
+            assertEquals(200, get(server, "/live"));
+            assertTrue(System.currentTimeMillis() - start < 500);
+        } finally {
+            idle.close();
+            server.close();
+        }
+    }
+
+    private int get(LauncherStatusServer server, String path) throws Exception {
+        HttpURLConnection conn = (HttpURLConnection) 
+            new URL("http://localhost:" + server.getPort() + path).openConnection();
+        try {
+            return conn.getResponseCode();
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    public static class Check implements ReadinessCheck {
+        private volatile boolean ready = false;
+        public boolean isReady() {
+            return ready;
+        }
+    }
+}
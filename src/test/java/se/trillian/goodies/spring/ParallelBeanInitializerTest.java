@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies.spring;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.springframework.beans.factory.BeanInitializationException;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.beans.factory.support.RootBeanDefinition;
+
+/**
+ * Tests {@link ParallelBeanInitializer}.
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+public class ParallelBeanInitializerTest extends TestCase {
+
+    private static final List<String> initialized = Collections.synchronizedList(new ArrayList<String>());
+
+    public void testInitializeInDependencyOrder() throws Exception {
+        initialized.clear();
+        DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+        beanFactory.registerBeanDefinition("a", new RootBeanDefinition(SlowBean.class));
+        beanFactory.registerBeanDefinition("b", new RootBeanDefinition(SlowBean.class));
+        beanFactory.registerBeanDefinition("c", new RootBeanDefinition(SlowBean.class));
+        beanFactory.preInstantiateSingletons();
+        // c depends on a via some other bean
+        beanFactory.registerDependentBean("a", "other");
+        beanFactory.registerDependentBean("other", "c");
+        ((SlowBean) beanFactory.getBean("a")).name = "a";
+        ((SlowBean) beanFactory.getBean("b")).name = "b";
+        ((SlowBean) beanFactory.getBean("c")).name = "c";
+
+        Map<String, Long> timings = new ParallelBeanInitializer(beanFactory, 4).initialize();
+        assertEquals(3, timings.size());
+        assertEquals(3, initialized.size());
+        assertTrue(initialized.indexOf("a") < initialized.indexOf("c"));
+    }
+
+    public void testFailure() throws Exception {
+        DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+        beanFactory.registerBeanDefinition("a", new RootBeanDefinition(FailingBean.class));
+        beanFactory.preInstantiateSingletons();
+        try {
+            new ParallelBeanInitializer(beanFactory, 4).initialize();
+            fail("BeanInitializationException expected");
+        } catch (BeanInitializationException e) {
+        }
+    }
+
+    public static class SlowBean implements ParallelInitializingBean {
+        private String name;
+        public void initialize() throws Exception {
+            Thread.sleep(50);
+            initialized.add(name);
+        }
+    }
+
+    public static class FailingBean implements ParallelInitializingBean {
+        public void initialize() throws Exception {
+            throw new IllegalStateException();
+        }
+    }
+}
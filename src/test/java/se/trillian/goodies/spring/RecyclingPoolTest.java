@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies.spring;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link RecyclingPool}.
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+public class RecyclingPoolTest extends TestCase {
+
+    public void testBounded() throws Exception {
+        RecyclingPool pool = new RecyclingPool(StringBuilder.class, 8);
+        for (int i = 0; i < 100; i++) {
+            pool.release(new StringBuilder());
+        }
+        Map<Object, Object> acquired = new IdentityHashMap<Object, Object>();
+        Object o;
+        while ((o = pool.acquire()) != null) {
+            assertNull(acquired.put(o, o));
+        }
+        assertTrue(acquired.size() > 0);
+        assertTrue(acquired.size() <= 8);
+    }
+    
+    public void testAcquireReleased() throws Exception {
+        RecyclingPool pool = new RecyclingPool(StringBuilder.class, 8);
+        assertNull(pool.acquire());
+        StringBuilder sb = new StringBuilder();
+        pool.release(sb);
+        assertSame(sb, pool.acquire());
+        assertNull(pool.acquire());
+        // Released again after being acquired
+        pool.release(sb);
+        assertSame(sb, pool.acquire());
+    }
+    
+    public void testDoubleRelease() throws Exception {
+        RecyclingPool pool = new RecyclingPool(StringBuilder.class, 8);
+        StringBuilder sb = new StringBuilder();
+        pool.release(sb);
+        try {
+            pool.release(sb);
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+        }
+        assertSame(sb, pool.acquire());
+        assertNull(pool.acquire());
+    }
+    
+    public void testThreadCacheCountsAgainstSize() throws Exception {
+        final RecyclingPool pool = new RecyclingPool(StringBuilder.class, 2);
+        final StringBuilder sb1 = new StringBuilder();
+        final StringBuilder sb2 = new StringBuilder();
+        final CountDownLatch released = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread t = new Thread() {
+            public void run() {
+                pool.release(sb1);
+                pool.release(sb2);
+                released.countDown();
+                try {
+                    done.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        t.start();
+        try {
+            released.await();
+            pool.release(new StringBuilder());
+            assertNull(pool.acquire());
+        } finally {
+            done.countDown();
+            t.join();
+        }
+    }
+    
+    public void testOverflowSharedBetweenThreads() throws Exception {
+        final RecyclingPool pool = new RecyclingPool(StringBuilder.class, 64);
+        final Map<Object, Object> released = new IdentityHashMap<Object, Object>();
+        Thread t = new Thread() {
+            public void run() {
+                for (int i = 0; i < 20; i++) {
+                    StringBuilder sb = new StringBuilder();
+                    released.put(sb, sb);
+                    pool.release(sb);
+                }
+            }
+        };
+        t.start();
+        t.join();
+        int acquired = 0;
+        Object o;
+        while ((o = pool.acquire()) != null) {
+            assertTrue(released.containsKey(o));
+            acquired++;
+        }
+        // The releasing thread keeps the rest in its cache
+        assertTrue(acquired > 0);
+        assertTrue(acquired < 20);
+    }
+    
+    public void testWrongType() throws Exception {
+        RecyclingPool pool = new RecyclingPool(StringBuilder.class, 8);
+        try {
+            pool.release("foo");
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+        }
+        assertNull(pool.acquire());
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies.spring;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.Status;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.context.support.GenericApplicationContext;
+
+/**
+ * Tests {@link ShutdownCoordinator}.
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+public class ShutdownCoordinatorTest extends TestCase {
+
+    public void testShutdown() throws Exception {
+        final AtomicBoolean taskDone = new AtomicBoolean();
+        final AtomicBoolean flushed = new AtomicBoolean();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                }
+                taskDone.set(true);
+            }
+        });
+        DrainableBean drainable = new DrainableBean();
+
+        GenericApplicationContext context = new GenericApplicationContext();
+        context.getBeanFactory().registerSingleton("executor", executor);
+        context.getBeanFactory().registerSingleton("drainable", drainable);
+        context.refresh();
+
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        PrintStream oldErr = System.err;
+        System.setErr(new PrintStream(err, true));
+        Map<String, Long> timings;
+        try {
+            timings = new ShutdownCoordinator(context, 5000, new Runnable() {
+                public void run() {
+                    flushed.set(true);
+                }
+            }).shutdown();
+        } finally {
+            System.setErr(oldErr);
+        }
+
+        assertEquals(Arrays.asList("stop", "drain", "flushLogging", "close"),
+                Arrays.asList(timings.keySet().toArray()));
+        assertTrue(executor.isTerminated());
+        assertTrue(taskDone.get());
+        assertTrue(drainable.drained);
+        assertTrue(flushed.get());
+        assertFalse(context.isActive());
+        assertTrue(err.toString().indexOf("Closed context in " + timings.get("close") + " ms") != -1);
+    }
+
+    public void testCachesAvailableWhileClosing() throws Exception {
+        CacheManager cacheManager = new CacheManager(new Configuration()
+                .name("ShutdownCoordinatorTest")
+                .defaultCache(new CacheConfiguration("default", 100)));
+        cacheManager.addCache("cache");
+        CacheUsingBean bean = new CacheUsingBean(cacheManager.getCache("cache"));
+        
+        GenericApplicationContext context = new GenericApplicationContext();
+        context.getBeanFactory().registerSingleton("cacheManager", cacheManager);
+        context.getBeanFactory().registerSingleton("bean", bean);
+        context.getDefaultListableBeanFactory().registerDisposableBean("bean", bean);
+        context.refresh();
+        
+        new ShutdownCoordinator(context, 5000, null).shutdown();
+        
+        assertTrue(bean.destroyed);
+        assertFalse(context.isActive());
+        assertEquals(Status.STATUS_SHUTDOWN, cacheManager.getStatus());
+    }
+    
+    public static class CacheUsingBean implements DisposableBean {
+        private final Ehcache cache;
+        private boolean destroyed = false;
+        public CacheUsingBean(Ehcache cache) {
+            this.cache = cache;
+        }
+        public void destroy() {
+            cache.put(new Element("key", "value"));
+            destroyed = true;
+        }
+    }
+
+    public static class DrainableBean implements Drainable {
+        private boolean drained = false;
+        public boolean drain(long timeoutMillis) {
+            drained = true;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies.spring;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link StartupTimingBeanPostProcessor}.
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+public class StartupTimingBeanPostProcessorTest extends TestCase {
+
+    public void testFailedBeanDoesNotBreakNesting() throws Exception {
+        StartupTimingBeanPostProcessor timing = new StartupTimingBeanPostProcessor();
+        Object bean = new Object();
+        
+        timing.postProcessBeforeInstantiation(Object.class, "parent");
+        timing.postProcessBeforeInstantiation(Object.class, "failing");
+        // 'failing' throws and is never initialized
+        timing.postProcessBeforeInstantiation(Object.class, "child");
+        Thread.sleep(20);
+        assertSame(bean, timing.postProcessAfterInitialization(bean, "child"));
+        assertSame(bean, timing.postProcessAfterInitialization(bean, "parent"));
+        
+        timing.postProcessBeforeInstantiation(Object.class, "other");
+        Thread.sleep(20);
+        timing.postProcessAfterInitialization(bean, "other");
+        timing.stop();
+        
+        List<StartupTimingBeanPostProcessor.Timing> timings = timing.getTimings();
+        assertEquals(3, timings.size());
+        for (StartupTimingBeanPostProcessor.Timing t : timings) {
+            if (t.getBeanName().equals("parent")) {
+                // The child's time is excluded from the parent's self time
+                assertTrue(t.getTotalMillis() >= 20);
+                assertTrue(t.getSelfMillis() < t.getTotalMillis());
+            } else {
+                assertTrue(t.getSelfMillis() >= 20);
+            }
+        }
+    }
+    
+    public void testStopped() throws Exception {
+        StartupTimingBeanPostProcessor timing = new StartupTimingBeanPostProcessor();
+        timing.stop();
+        timing.postProcessBeforeInstantiation(Object.class, "bean");
+        timing.postProcessAfterInitialization(new Object(), "bean");
+        assertTrue(timing.getTimings().isEmpty());
+    }
+}
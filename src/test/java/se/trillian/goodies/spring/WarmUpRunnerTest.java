@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies.spring;
+
+import java.util.Collections;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.beans.factory.support.RootBeanDefinition;
+
+/**
+ * Tests {@link WarmUpRunner}.
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+public class WarmUpRunnerTest extends TestCase {
+
+    public void testWarmUp() throws Exception {
+        DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+        beanFactory.registerBeanDefinition("fast", new RootBeanDefinition(FastBean.class));
+        beanFactory.registerBeanDefinition("slow", new RootBeanDefinition(SlowBean.class));
+        beanFactory.registerBeanDefinition("failing", new RootBeanDefinition(FailingBean.class));
+        beanFactory.preInstantiateSingletons();
+
+        long start = System.currentTimeMillis();
+        WarmUpRunner runner = new WarmUpRunner(beanFactory, 4, 200);
+        Map<String, Long> timings = runner.warmUp();
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(1, timings.size());
+        assertTrue(timings.containsKey("fast"));
+        assertEquals(Collections.singleton("failing"), runner.getFailed());
+    }
+
+    public static class FastBean implements WarmUpBean {
+        public void warmUp() throws Exception {
+        }
+    }
+
+    public static class SlowBean implements WarmUpBean {
+        public void warmUp() throws Exception {
+            Thread.sleep(10000);
+        }
+    }
+
+    public static class FailingBean implements WarmUpBean {
+        public void warmUp() throws Exception {
+            throw new IllegalStateException();
+        }
+    }
+}
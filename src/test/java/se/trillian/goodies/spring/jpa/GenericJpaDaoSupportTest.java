@@ -0,0 +1,961 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies.spring.jpa;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+
+import org.springframework.beans.factory.BeanInitializationException;
+import org.springframework.orm.jpa.JpaTemplate;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.agical.rmock.extension.junit.RMockTestCase;
+
+/**
+ * Tests {@link GenericJpaDaoSupport} using a mocked {@link EntityManager}.
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+public class GenericJpaDaoSupportTest extends RMockTestCase {
+    EntityManager em;
+    ItemDao dao;
+    int queries = 0;
+    CacheManager cacheManager;
+
+    @Override
+    protected void setUp() throws Exception {
+        em = (EntityManager) mock(EntityManager.class, "em");
+        JpaTemplate jpaTemplate = new JpaTemplate();
+        jpaTemplate.setEntityManager(em);
+        jpaTemplate.setExposeNativeEntityManager(true);
+        dao = new ItemDao();
+        dao.setJpaTemplate(jpaTemplate);
+        dao.setBatchSize(2);
+        dao.setSlowThreshold(-1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        dao.destroy();
+        if (cacheManager != null) {
+            cacheManager.shutdown();
+        }
+        super.tearDown();
+    }
+
+    private void enableCache() {
+        cacheManager = new CacheManager(new Configuration()
+                .name("GenericJpaDaoSupportTest")
+                .defaultCache(new CacheConfiguration("default", 100)));
+        cacheManager.addCache(Item.class.getName());
+        dao.setCacheManager(cacheManager);
+    }
+
+    private static List<Item> items(long ... ids) {
+        List<Item> items = new ArrayList<Item>();
+        for (long id : ids) {
+            items.add(new Item(id));
+        }
+        return items;
+    }
+
+    public void testPersistAllFlushesAndClearsEveryBatch() throws Exception {
+        List<Item> items = items(1, 2, 3, 4, 5);
+        for (Item item : items) {
+            em.persist(item);
+        }
+        em.flush();
+        modify().multiplicity(expect.exactly(3));
+        em.clear();
+        modify().multiplicity(expect.exactly(2));
+
+        startVerification();
+
+        dao.afterPropertiesSet();
+        dao.persistAll(items);
+    }
+
+    public void testPersistAllExactMultipleOfBatchSize() throws Exception {
+        List<Item> items = items(1, 2, 3, 4);
+        for (Item item : items) {
+            em.persist(item);
+        }
+        em.flush();
+        modify().multiplicity(expect.exactly(3));
+        em.clear();
+        modify().multiplicity(expect.exactly(2));
+
+        startVerification();
+
+        dao.afterPropertiesSet();
+        dao.persistAll(items);
+    }
+
+    public void testPersistAllEmpty() throws Exception {
+        em.flush();
+
+        startVerification();
+
+        dao.afterPropertiesSet();
+        dao.persistAll(Collections.<Item>emptyList());
+    }
+
+    public void testMergeAllKeepsOrder() throws Exception {
+        List<Item> items = items(1, 2, 3);
+        List<Item> merged = items(1, 2, 3);
+        for (int i = 0; i < items.size(); i++) {
+            em.merge(items.get(i));
+            modify().returnValue(merged.get(i));
+        }
+        em.flush();
+        modify().multiplicity(expect.exactly(2));
+        em.clear();
+
+        startVerification();
+
+        dao.afterPropertiesSet();
+        List<Item> result = dao.mergeAll(items);
+        assertEquals(3, result.size());
+        for (int i = 0; i < result.size(); i++) {
+            assertSame(merged.get(i), result.get(i));
+        }
+    }
+
+    public void testDeleteAllByIdInChunks() throws Exception {
+        Query full = (Query) mock(Query.class, "full");
+        Query partial = (Query) mock(Query.class, "partial");
+        em.createQuery("delete from Item where id in (?1, ?2)");
+        modify().multiplicity(expect.exactly(2)).returnValue(full);
+        full.setParameter(1, 1L);
+        full.setParameter(2, 2L);
+        full.setParameter(1, 3L);
+        full.setParameter(2, 4L);
+        full.executeUpdate();
+        modify().multiplicity(expect.exactly(2)).returnValue(2);
+        em.createQuery("delete from Item where id in (?1)");
+        modify().returnValue(partial);
+        partial.setParameter(1, 5L);
+        partial.executeUpdate();
+        modify().returnValue(0);
+
+        startVerification();
+
+        dao.afterPropertiesSet();
+        assertEquals(4, dao.deleteAllById(Arrays.asList(1L, 2L, 3L, 4L, 5L)));
+    }
+
+    public void testDeleteAllByIdEmpty() throws Exception {
+        startVerification();
+
+        dao.afterPropertiesSet();
+        assertEquals(0, dao.deleteAllById(Collections.<Long>emptyList()));
+    }
+
+    private static Object[] row(Item item) {
+        return new Object[] {item.getId(), item};
+    }
+
+    public void testLoadAllInChunks() throws Exception {
+        Item item1 = new Item(1);
+        Item item3 = new Item(3);
+        Item item5 = new Item(5);
+        Query full = (Query) mock(Query.class, "full");
+        Query partial = (Query) mock(Query.class, "partial");
+        em.createQuery("select e.id, e from Item e where e.id in (?1, ?2, ?3)");
+        modify().returnValue(full);
+        full.setParameter(1, 3L);
+        full.setParameter(2, 1L);
+        full.setParameter(3, 2L);
+        full.getResultList();
+        modify().returnValue(Arrays.asList(row(item1), row(item3)));
+        em.createQuery("select e.id, e from Item e where e.id in (?1)");
+        modify().returnValue(partial);
+        partial.setParameter(1, 5L);
+        partial.getResultList();
+        modify().returnValue(Collections.singletonList(row(item5)));
+
+        startVerification();
+
+        dao.setLoadChunkSize(3);
+        dao.afterPropertiesSet();
+        List<Item> result = dao.loadAll(Arrays.asList(3L, 1L, 2L, 3L, 5L));
+        assertEquals(Arrays.asList(item3, item1, item3, item5), result);
+    }
+
+    public void testLoadAllExactMultipleOfChunkSize() throws Exception {
+        List<Item> items = items(1, 2, 3, 4);
+        Query query = (Query) mock(Query.class, "query");
+        em.createQuery("select e.id, e from Item e where e.id in (?1, ?2)");
+        modify().multiplicity(expect.exactly(2)).returnValue(query);
+        query.setParameter(1, 1L);
+        query.setParameter(2, 2L);
+        query.getResultList();
+        modify().returnValue(Arrays.asList(row(items.get(0)), row(items.get(1))));
+        query.setParameter(1, 3L);
+        query.setParameter(2, 4L);
+        query.getResultList();
+        modify().returnValue(Arrays.asList(row(items.get(2)), row(items.get(3))));
+
+        startVerification();
+
+        dao.setLoadChunkSize(2);
+        dao.afterPropertiesSet();
+        assertEquals(items, dao.loadAll(Arrays.asList(1L, 2L, 3L, 4L)));
+    }
+
+    public void testLoadAllSkipsItemsInPersistenceContext() throws Exception {
+        Item item1 = new Item(1);
+        Item item2 = new Item(2);
+        dao.managed.put(1L, item1);
+        Query query = (Query) mock(Query.class, "query");
+        em.createQuery("select e.id, e from Item e where e.id in (?1)");
+        modify().returnValue(query);
+        query.setParameter(1, 2L);
+        query.getResultList();
+        modify().returnValue(Collections.singletonList(row(item2)));
+
+        startVerification();
+
+        dao.afterPropertiesSet();
+        assertEquals(Arrays.asList(item1, item2), dao.loadAll(Arrays.asList(1L, 2L)));
+    }
+
+    public void testLoadAllEmpty() throws Exception {
+        startVerification();
+
+        dao.afterPropertiesSet();
+        assertTrue(dao.loadAll(Collections.<Long>emptyList()).isEmpty());
+    }
+
+    private void expectPage(Long lastId, int pageSize, List<Item> items) {
+        Query query = (Query) mock(Query.class, "query" + (queries++));
+        em.clear();
+        if (lastId == null) {
+            em.createQuery("select e.id, e from Item e order by e.id");
+            modify().returnValue(query);
+        } else {
+            em.createQuery("select e.id, e from Item e where e.id > ?1 order by e.id");
+            modify().returnValue(query);
+            query.setParameter(1, lastId);
+        }
+        query.setMaxResults(pageSize);
+        modify().returnValue(query);
+        List<Object[]> rows = new ArrayList<Object[]>();
+        for (Item item : items) {
+            rows.add(row(item));
+        }
+        query.getResultList();
+        modify().returnValue(rows);
+    }
+
+    private static List<Item> toList(Iterator<Item> it) {
+        List<Item> result = new ArrayList<Item>();
+        while (it.hasNext()) {
+            result.add(it.next());
+        }
+        return result;
+    }
+
+    public void testIterateEmpty() throws Exception {
+        expectPage(null, 2, Collections.<Item>emptyList());
+
+        startVerification();
+
+        dao.afterPropertiesSet();
+        Iterator<Item> it = dao.iterate(2);
+        assertFalse(it.hasNext());
+        assertFalse(it.hasNext());
+        try {
+            it.next();
+            fail("NoSuchElementException expected");
+        } catch (NoSuchElementException e) {
+        }
+    }
+
+    public void testIterateExactMultipleOfPageSize() throws Exception {
+        List<Item> items = items(1, 2, 3, 4);
+        expectPage(null, 2, items.subList(0, 2));
+        expectPage(2L, 2, items.subList(2, 4));
+        expectPage(4L, 2, Collections.<Item>emptyList());
+
+        startVerification();
+
+        dao.afterPropertiesSet();
+        assertEquals(items, toList(dao.iterate(2)));
+    }
+
+    public void testIteratePartialLastPage() throws Exception {
+        List<Item> items = items(1, 2, 3);
+        expectPage(null, 2, items.subList(0, 2));
+        expectPage(2L, 2, items.subList(2, 3));
+
+        startVerification();
+
+        dao.afterPropertiesSet();
+        Iterator<Item> it = dao.iterate(2);
+        assertEquals(items, toList(it));
+        assertFalse(it.hasNext());
+    }
+
+    public void testForEachWithThreads() throws Exception {
+        List<Item> items = items(1, 2, 3, 4, 5);
+        expectPage(null, 2, items.subList(0, 2));
+        expectPage(2L, 2, items.subList(2, 4));
+        expectPage(4L, 2, items.subList(4, 5));
+
+        startVerification();
+
+        dao.afterPropertiesSet();
+        final List<Item> handled = Collections.synchronizedList(new ArrayList<Item>());
+        dao.forEach(2, new GenericJpaDaoSupport.ItemCallback<Item>() {
+            public void handle(Item item) {
+                handled.add(item);
+            }
+        }, 3);
+        assertEquals(5, handled.size());
+        assertTrue(handled.containsAll(items));
+    }
+
+    public void testForEachThrowsFirstFailure() throws Exception {
+        expectPage(null, 2, items(1));
+
+        startVerification();
+
+        dao.afterPropertiesSet();
+        final Exception failure = new Exception("expected");
+        try {
+            dao.forEach(2, new GenericJpaDaoSupport.ItemCallback<Item>() {
+                public void handle(Item item) throws Exception {
+                    throw failure;
+                }
+            }, 2);
+            fail("Exception expected");
+        } catch (Exception e) {
+            assertSame(failure, e);
+        }
+    }
+
+    public void testFindByQuery() throws Exception {
+        List<Item> items = items(1);
+        Query query = (Query) mock(Query.class, "query");
+        em.createQuery("select e from Item e where e.name=?1 and e.version=?2");
+        modify().returnValue(query);
+        query.setParameter(1, "a");
+        query.setParameter(2, 3L);
+        query.getResultList();
+        modify().returnValue(items);
+
+        startVerification();
+
+        dao.afterPropertiesSet();
+        assertEquals(items, dao.findByQuery(ItemDao.FIND_BY_NAME_AND_VERSION_QUERY, "a", 3L));
+        assertSame(dao.getQuery(ItemDao.FIND_BY_NAME_AND_VERSION_QUERY), 
+                dao.getQuery(ItemDao.FIND_BY_NAME_AND_VERSION_QUERY));
+        try {
+            dao.findByQuery("unknown");
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+        }
+        assertEquals(1, dao.getStatistics().getCount("findByQuery:" + ItemDao.FIND_BY_NAME_AND_VERSION_QUERY));
+        assertNull(dao.getStatistics().getHistogram("findByQuery:unknown"));
+    }
+
+    public void testFindBy() throws Exception {
+        List<Item> items = items(1, 2);
+        Query query = (Query) mock(Query.class, "query");
+        em.createQuery("select e from Item e where e.name=?1");
+        modify().multiplicity(expect.exactly(2)).returnValue(query);
+        query.setParameter(1, "a");
+        modify().multiplicity(expect.exactly(2)).returnValue(query);
+        query.getResultList();
+        modify().multiplicity(expect.exactly(2)).returnValue(items);
+
+        startVerification();
+
+        dao.afterPropertiesSet();
+        assertEquals(items, dao.findBy("name", "a"));
+        assertEquals(items, dao.findBy("name", "a"));
+    }
+
+    public void testFindByInvalidProperty() throws Exception {
+        startVerification();
+
+        dao.afterPropertiesSet();
+        try {
+            dao.findBy("name=name or 1", "a");
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+        }
+        assertEquals(0, dao.getStatistics().getOperations().length);
+    }
+
+    public void testCountAll() throws Exception {
+        Query query = (Query) mock(Query.class, "query");
+        em.createQuery("select count(e) from Item e");
+        modify().returnValue(query);
+        query.getSingleResult();
+        modify().returnValue(3L);
+
+        startVerification();
+
+        dao.afterPropertiesSet();
+        assertEquals(3L, dao.countAll());
+    }
+
+    public void testLoadReadsThroughCache() throws Exception {
+        Item item = new Item(1);
+        em.find(Item.class, 1L);
+        modify().returnValue(item);
+
+        startVerification();
+
+        enableCache();
+        dao.afterPropertiesSet();
+        assertSame(item, dao.load(1L));
+        Item cached = dao.load(1L);
+        assertNotSame(item, cached);
+        assertEquals(Long.valueOf(1), cached.getId());
+        assertSame(cached, dao.load(1L));
+        item.setName("changed");
+        assertNull(dao.load(1L).getName());
+    }
+
+    public void testLoadMissingNotCached() throws Exception {
+        em.find(Item.class, 1L);
+        modify().multiplicity(expect.exactly(2)).returnValue(null);
+
+        startVerification();
+
+        enableCache();
+        dao.afterPropertiesSet();
+        assertNull(dao.load(1L));
+        assertNull(dao.load(1L));
+    }
+
+    public void testWritesInvalidateCache() throws Exception {
+        Item item = new Item(1);
+        em.find(Item.class, 1L);
+        modify().multiplicity(expect.exactly(3)).returnValue(item);
+        em.persist(item);
+        em.merge(item);
+        modify().returnValue(item);
+        Query query = (Query) mock(Query.class, "query");
+        em.createQuery("delete from Item where id=?1");
+        modify().returnValue(query);
+        query.setParameter(1, 1L);
+        modify().returnValue(query);
+        query.executeUpdate();
+        modify().returnValue(1);
+        em.find(Item.class, 1L);
+        modify().returnValue(null);
+
+        startVerification();
+
+        enableCache();
+        dao.afterPropertiesSet();
+        dao.load(1L);
+        dao.load(1L);
+        dao.persist(item);
+        dao.load(1L);
+        dao.load(1L);
+        dao.merge(item);
+        dao.load(1L);
+        dao.load(1L);
+        dao.deleteById(1L);
+        assertNull(dao.load(1L));
+    }
+
+    public void testLoadAllUsesCache() throws Exception {
+        Item item1 = new Item(1);
+        Item item2 = new Item(2);
+        em.find(Item.class, 1L);
+        modify().returnValue(item1);
+        Query query = (Query) mock(Query.class, "query");
+        em.createQuery("select e.id, e from Item e where e.id in (?1)");
+        modify().returnValue(query);
+        query.setParameter(1, 2L);
+        query.getResultList();
+        modify().returnValue(Collections.singletonList(row(item2)));
+
+        startVerification();
+
+        enableCache();
+        dao.afterPropertiesSet();
+        dao.load(1L);
+        List<Item> result = dao.loadAll(Arrays.asList(1L, 2L));
+        assertEquals(2, result.size());
+        assertEquals(Long.valueOf(1), result.get(0).getId());
+        assertNotSame(item1, result.get(0));
+        assertSame(item2, result.get(1));
+        result = dao.loadAll(Arrays.asList(2L, 1L));
+        assertEquals(Long.valueOf(2), result.get(0).getId());
+        assertNotSame(item2, result.get(0));
+        assertEquals(Long.valueOf(1), result.get(1).getId());
+    }
+
+    public void testRollbackAfterMergeLeavesCacheClean() throws Exception {
+        Item committed = new Item(1);
+        final Item changed = new Item(1);
+        changed.setName("changed");
+        em.find(Item.class, 1L);
+        modify().returnValue(committed);
+        em.merge(changed);
+        modify().returnValue(changed);
+        em.find(Item.class, 1L);
+        modify().returnValue(changed);
+        em.find(Item.class, 1L);
+        modify().returnValue(committed);
+
+        startVerification();
+
+        enableCache();
+        dao.afterPropertiesSet();
+        dao.load(1L);
+        CountingTransactionManager transactionManager = new CountingTransactionManager();
+        new TransactionTemplate(transactionManager).execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                dao.merge(changed);
+                assertSame(changed, dao.load(1L));
+                // Another thread reloading the entity before we roll back
+                Item stale = new Item(1);
+                stale.setName("stale");
+                cacheManager.getEhcache(Item.class.getName()).put(new Element(1L, stale));
+                status.setRollbackOnly();
+            }
+        });
+        assertEquals(1, transactionManager.rollbacks.get());
+        assertNull(cacheManager.getEhcache(Item.class.getName()).get(1L));
+        assertNull(dao.load(1L).getName());
+        assertNull(dao.load(1L).getName());
+    }
+
+    public void testCacheRequiresSerializable() throws Exception {
+        startVerification();
+
+        enableCache();
+        GenericJpaDaoSupport<Object, Long> objectDao = new GenericJpaDaoSupport<Object, Long>() {
+            @Override
+            protected Class<? extends Object> getJpaClass() {
+                return Object.class;
+            }
+        };
+        objectDao.setJpaTemplate(dao.getJpaTemplate());
+        objectDao.setCacheManager(cacheManager);
+        objectDao.setCacheName(Item.class.getName());
+        try {
+            objectDao.afterPropertiesSet();
+            fail("BeanInitializationException expected");
+        } catch (BeanInitializationException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+    }
+
+    public void testStatisticsRegisteredWhileInUse() throws Exception {
+        startVerification();
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("se.trillian.goodies:type=Dao,name=" + ObjectName.quote("Item"));
+        assertFalse(server.isRegistered(name));
+        dao.afterPropertiesSet();
+        ItemDao other = new ItemDao();
+        other.setJpaTemplate(dao.getJpaTemplate());
+        other.afterPropertiesSet();
+        assertSame(dao.getStatistics(), other.getStatistics());
+        assertTrue(server.isRegistered(name));
+        other.destroy();
+        assertTrue(server.isRegistered(name));
+        dao.destroy();
+        assertFalse(server.isRegistered(name));
+        dao.destroy();
+        assertFalse(server.isRegistered(name));
+    }
+
+    public void testFailedInitAcquiresNothing() throws Exception {
+        startVerification();
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("se.trillian.goodies:type=Dao,name=" + ObjectName.quote("Item"));
+        enableCache();
+        dao.setCacheName("missing");
+        dao.setTransactionManager(new CountingTransactionManager());
+        dao.setWriteBehind(true);
+        try {
+            dao.afterPropertiesSet();
+            fail("BeanInitializationException expected");
+        } catch (BeanInitializationException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+        assertFalse(server.isRegistered(name));
+        assertNull(dao.getStatistics());
+        Thread[] threads = new Thread[Thread.activeCount() * 2];
+        for (int i = Thread.enumerate(threads) - 1; i >= 0; i--) {
+            assertFalse(threads[i].getName().equals("WriteBehind-Item"));
+        }
+    }
+
+    public void testPersistAsyncWriteBehind() throws Exception {
+        final List<Item> items = items(1, 2, 3, 4);
+        for (Item item : items) {
+            em.persist(item);
+        }
+        em.flush();
+        modify().multiplicity(expect.atLeast(2));
+        em.clear();
+        modify().multiplicity(expect.atMostOnce());
+
+        startVerification();
+
+        CountingTransactionManager transactionManager = new CountingTransactionManager();
+        dao.setTransactionManager(transactionManager);
+        dao.setWriteBehind(true);
+        dao.afterPropertiesSet();
+        for (Item item : items.subList(0, 3)) {
+            dao.persistAsync(item);
+        }
+        dao.destroy();
+        assertTrue(dao.destroyed);
+        int commits = transactionManager.commits.get();
+        assertTrue(commits >= 1);
+        
+        dao.persistAsync(items.get(3));
+        assertEquals(commits + 1, transactionManager.commits.get());
+        assertEquals(0, transactionManager.rollbacks.get());
+    }
+
+    public void testPersistAsyncWithoutWriteBehind() throws Exception {
+        Item item = new Item(1);
+        em.persist(item);
+        em.flush();
+
+        startVerification();
+
+        CountingTransactionManager transactionManager = new CountingTransactionManager();
+        dao.setTransactionManager(transactionManager);
+        dao.afterPropertiesSet();
+        dao.persistAsync(item);
+        assertEquals(1, transactionManager.commits.get());
+    }
+
+    public void testPersistAsyncJoinsCallersTransaction() throws Exception {
+        final Item item = new Item(1);
+        em.persist(item);
+        em.flush();
+
+        startVerification();
+
+        dao.afterPropertiesSet();
+        CountingTransactionManager transactionManager = new CountingTransactionManager();
+        new TransactionTemplate(transactionManager).execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                dao.persistAsync(item);
+            }
+        });
+        assertEquals(1, transactionManager.commits.get());
+    }
+
+    public void testPersistAsyncRequiresTransaction() throws Exception {
+        startVerification();
+
+        dao.afterPropertiesSet();
+        try {
+            dao.persistAsync(new Item(1));
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    public void testWriteBehindRequiresTransactionManager() throws Exception {
+        startVerification();
+
+        dao.setWriteBehind(true);
+        try {
+            dao.afterPropertiesSet();
+            fail("BeanInitializationException expected");
+        } catch (BeanInitializationException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+    }
+
+    private static Map<String, Object> values(Object ... namesAndValues) {
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            values.put((String) namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return values;
+    }
+
+    public void testUpdateBumpsVersionAndRefreshes() throws Exception {
+        Item item = new Item(1);
+        Query query = (Query) mock(Query.class, "query");
+        em.createQuery("update Item e set e.name=?1, e.code=?2, e.version=e.version + 1 where e.id=?3");
+        modify().returnValue(query);
+        query.setParameter(1, "a");
+        query.setParameter(2, "b");
+        query.setParameter(3, 1L);
+        query.executeUpdate();
+        modify().returnValue(1);
+        em.refresh(item);
+
+        startVerification();
+
+        dao.managed.put(1L, item);
+        dao.afterPropertiesSet();
+        assertTrue(dao.update(1L, values("name", "a", "code", "b")));
+    }
+
+    public void testUpdateWithExpectedVersion() throws Exception {
+        Query query = (Query) mock(Query.class, "query");
+        em.createQuery("update Item e set e.name=?1, e.version=e.version + 1 where e.id=?2 and e.version=?3");
+        modify().multiplicity(expect.exactly(2)).returnValue(query);
+        query.setParameter(1, "a");
+        modify().multiplicity(expect.exactly(2));
+        query.setParameter(2, 1L);
+        modify().multiplicity(expect.exactly(2));
+        query.setParameter(3, 5L);
+        query.executeUpdate();
+        modify().returnValue(0);
+        query.setParameter(3, 4L);
+        query.executeUpdate();
+        modify().returnValue(1);
+
+        startVerification();
+
+        dao.afterPropertiesSet();
+        assertFalse(dao.update(1L, values("name", "a"), 5L));
+        assertTrue(dao.update(1L, values("name", "a"), 4L));
+    }
+
+    public void testUpdateSettingVersion() throws Exception {
+        Query query = (Query) mock(Query.class, "query");
+        em.createQuery("update Item e set e.version=?1 where e.id=?2");
+        modify().returnValue(query);
+        query.setParameter(1, 7L);
+        query.setParameter(2, 1L);
+        query.executeUpdate();
+        modify().returnValue(0);
+
+        startVerification();
+
+        dao.afterPropertiesSet();
+        assertFalse(dao.update(1L, values("version", 7L)));
+    }
+
+    public void testUpdateWithoutVersionProperty() throws Exception {
+        Query query = (Query) mock(Query.class, "query");
+        em.createQuery("update Item e set e.name=?1 where e.id=?2");
+        modify().returnValue(query);
+        query.setParameter(1, "a");
+        query.setParameter(2, 1L);
+        query.executeUpdate();
+        modify().returnValue(0);
+
+        startVerification();
+
+        dao = new ItemDao() {
+            @Override
+            protected String getVersionPropertyName() {
+                return null;
+            }
+        };
+        dao.setJpaTemplate(new JpaTemplate(em));
+        dao.afterPropertiesSet();
+        assertFalse(dao.update(1L, values("name", "a")));
+        try {
+            dao.update(1L, values("name", "a"), 1L);
+            fail("IllegalStateException expected");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    public void testUpdateInvalidProperties() throws Exception {
+        startVerification();
+
+        dao.afterPropertiesSet();
+        try {
+            dao.update(1L, values("name=?1, e.id", 1L));
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            dao.update(1L, values());
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            dao.updateWhere(values("name", "a"), values("1=1 or e.name", "b"));
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    public void testUpdateWhere() throws Exception {
+        Item item = new Item(1);
+        em.find(Item.class, 1L);
+        modify().multiplicity(expect.exactly(2)).returnValue(item);
+        Query query = (Query) mock(Query.class, "query");
+        em.createQuery("update Item e set e.name=?1, e.code=?2, e.version=e.version + 1 "
+                + "where e.code=?3 and e.version=?4");
+        modify().returnValue(query);
+        query.setParameter(1, "a");
+        query.setParameter(2, "b");
+        query.setParameter(3, "c");
+        query.setParameter(4, 2L);
+        query.executeUpdate();
+        modify().returnValue(3);
+
+        startVerification();
+
+        enableCache();
+        dao.afterPropertiesSet();
+        dao.load(1L);
+        dao.load(1L);
+        assertEquals(3, dao.updateWhere(values("name", "a", "code", "b"), values("code", "c", "version", 2L)));
+        dao.load(1L);
+    }
+
+    public static class Item implements Serializable {
+        private Long id;
+        private long version;
+        private String name;
+        private String code;
+
+        public Item() {
+        }
+
+        public Item(long id) {
+            this.id = id;
+        }
+
+        public Long getId() {
+            return id;
+        }
+
+        public void setId(Long id) {
+            this.id = id;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public void setVersion(long version) {
+            this.version = version;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public String getCode() {
+            return code;
+        }
+
+        public void setCode(String code) {
+            this.code = code;
+        }
+
+        @Override
+        public String toString() {
+            return "Item(" + id + ")";
+        }
+    }
+
+    static class ItemDao extends GenericJpaDaoSupport<Item, Long> {
+        static final String FIND_BY_NAME_AND_VERSION_QUERY = "findByNameAndVersion";
+
+        final Map<Long, Item> managed = new HashMap<Long, Item>();
+        boolean destroyed = false;
+
+        @Override
+        protected void registerQueries(Map<String, String> queries) {
+            super.registerQueries(queries);
+            queries.put(FIND_BY_NAME_AND_VERSION_QUERY, 
+                    "select e from Item e where e.name=?1 and e.version=?2");
+        }
+
+        @Override
+        protected void destroyDao() {
+            destroyed = true;
+        }
+
+        @Override
+        protected Item findInPersistenceContext(EntityManager entityManager, Long id) {
+            return managed.get(id);
+        }
+
+        @Override
+        protected Class<? extends Item> getJpaClass() {
+            return Item.class;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    static class CountingTransactionManager extends AbstractPlatformTransactionManager {
+        final AtomicInteger commits = new AtomicInteger();
+        final AtomicInteger rollbacks = new AtomicInteger();
+
+        @Override
+        protected Object doGetTransaction() {
+            return new Object();
+        }
+
+        @Override
+        protected void doBegin(Object transaction, TransactionDefinition definition) {
+        }
+
+        @Override
+        protected void doCommit(DefaultTransactionStatus status) {
+            commits.incrementAndGet();
+        }
+
+        @Override
+        protected void doRollback(DefaultTransactionStatus status) {
+            rollbacks.incrementAndGet();
+        }
+    }
+}
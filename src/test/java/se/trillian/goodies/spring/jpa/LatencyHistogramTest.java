@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies.spring.jpa;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link LatencyHistogram}.
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+public class LatencyHistogramTest extends TestCase {
+
+    public void testBuckets() throws Exception {
+        for (long v : new long[] {0, 1, 31, 32, 33, 1000, 123456789L, Long.MAX_VALUE}) {
+            long lower = LatencyHistogram.valueOf(LatencyHistogram.indexOf(v));
+            assertTrue(v + " >= " + lower, v >= lower);
+            assertTrue(v + " within 1/32 of " + lower, v - lower <= lower / 32);
+        }
+    }
+
+    public void testPercentiles() throws Exception {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getValueAtPercentile(99));
+        for (int i = 1; i <= 1000; i++) {
+            h.record(i);
+        }
+        assertEquals(1000, h.getCount());
+        assertEquals(1000, h.getMax());
+        assertEquals(500.5, h.getMean(), 0.001);
+        assertTrue(Math.abs(h.getValueAtPercentile(50) - 500) <= 500 / 32);
+        assertTrue(Math.abs(h.getValueAtPercentile(99) - 990) <= 990 / 32);
+        assertEquals(1000, h.getValueAtPercentile(100));
+        h.reset();
+        assertEquals(0, h.getCount());
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies.spring.jpa;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link WriteBehindQueue}.
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+public class WriteBehindQueueTest extends TestCase {
+
+    public void testWriteAndDrain() throws Exception {
+        final List<Integer> written = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        WriteBehindQueue<Integer> queue = new WriteBehindQueue<Integer>("test", 1000, 10, 
+                new WriteBehindQueue.Writer<Integer>() {
+                    public void write(List<Integer> batch) {
+                        batchSizes.add(batch.size());
+                        written.addAll(batch);
+                    }
+                });
+        for (int i = 0; i < 100; i++) {
+            assertTrue(queue.offer(i, 1000));
+        }
+        assertTrue(queue.drain(5000));
+        assertEquals(0, queue.getPending());
+        assertEquals(100, written.size());
+        for (int size : batchSizes) {
+            assertTrue(size <= 10);
+        }
+        assertFalse(queue.offer(100, 1000));
+        assertEquals(0, queue.getPending());
+    }
+
+    public void testFull() throws Exception {
+        final Object lock = new Object();
+        WriteBehindQueue<Integer> queue = new WriteBehindQueue<Integer>("test", 1, 1, 
+                new WriteBehindQueue.Writer<Integer>() {
+                    public void write(List<Integer> batch) {
+                        synchronized (lock) {
+                        }
+                    }
+                });
+        synchronized (lock) {
+            assertTrue(queue.offer(1, 1000));
+            // Wait for the writer to block on the lock
+            while (queue.getPending() == 1 && !queue.offer(2, 10)) {
+            }
+            assertFalse(queue.offer(3, 10));
+        }
+        assertTrue(queue.drain(5000));
+    }
+}
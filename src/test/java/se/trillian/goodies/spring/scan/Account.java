@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies.spring.scan;
+
+/**
+ * Domain object interface found by DomainObjectFactoryScannerTest.
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+public interface Account {
+    String getName();
+    
+    interface Factory {
+        Account create(String name);
+    }
+}
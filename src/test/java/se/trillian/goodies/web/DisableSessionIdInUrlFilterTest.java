@@ -26,8 +26,10 @@ import javax.servlet.http.HttpServletResponse;
 
 import junit.framework.TestCase;
 
+import org.springframework.mock.web.MockFilterConfig;
 import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockHttpSession;
 
 /**
  * Tests {@link DisableSessionIdInUrlFilter}.
@@ -91,4 +93,75 @@ public class DisableSessionIdInUrlFilterTest extends TestCase {
         
         assertTrue(called[0]);
     }
+    
+    public void testNoWrappersWithoutSessionIdInUrl() throws Exception {
+        request.setRequestURI("/index.html");
+        request.setRequestedSessionIdFromCookie(true);
+        MockHttpSession session = new MockHttpSession();
+        session.setNew(false);
+        request.setSession(session);
+        final boolean[] called = new boolean[] {false};
+        
+        filter.doFilter(request, response, new FilterChain() {
+            public void doFilter(ServletRequest req, ServletResponse res)
+                    throws IOException, ServletException {
+                
+                assertSame(request, req);
+                assertSame(response, res);
+                called[0] = true;
+            }
+        });
+        
+        assertTrue(called[0]);
+    }
+    
+    public void testRemoveSessionId() throws Exception {
+        String s = "/index.html;foo=bar";
+        assertSame(s, DisableSessionIdInUrlFilter.removeSessionId(s));
+        assertEquals("/index.html", DisableSessionIdInUrlFilter.removeSessionId("/index.html;JSESSIONID=1047KV5xa62lf"));
+        assertEquals("/a.html?x=1", DisableSessionIdInUrlFilter.removeSessionId("/a.html;jsessionid=ab12?x=1"));
+        assertEquals("/a;jsessionid=", DisableSessionIdInUrlFilter.removeSessionId("/a;jsessionid="));
+        assertEquals("/a;x", DisableSessionIdInUrlFilter.removeSessionId("/a;x;jsessionid=1"));
+        assertNull(DisableSessionIdInUrlFilter.removeSessionId(null));
+    }
+    
+    public void testInitWithoutParameters() throws Exception {
+        filter.init(new MockFilterConfig());
+        testSessionIdInRequestUrlIsRemoved();
+    }
+    
+    public void testDisabledForPaths() throws Exception {
+        MockFilterConfig config = new MockFilterConfig();
+        config.addInitParameter("disable-for-paths", "/api/*, *.json\n/status");
+        config.addInitParameter("disable-for-path-pattern", "/rpc/.*");
+        filter.init(config);
+        
+        assertDisabled("/api/accounts", true);
+        assertDisabled("/api", true);
+        assertDisabled("/api", "/accounts.json", true);
+        assertDisabled("/web", "/accounts.json", true);
+        assertDisabled("/accounts.json", true);
+        assertDisabled("/status", true);
+        assertDisabled("/rpc/call", true);
+        assertDisabled("/index.html", false);
+    }
+    
+    private void assertDisabled(String path, boolean disabled) throws Exception {
+        assertDisabled(path, null, disabled);
+    }
+    
+    private void assertDisabled(String servletPath, String pathInfo, final boolean disabled) throws Exception {
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setServletPath(servletPath);
+        request.setPathInfo(pathInfo);
+        request.setRequestURI(servletPath + (pathInfo == null ? "" : pathInfo) + ";jsessionid=1047kv5xa62lf");
+        request.setRequestedSessionIdFromURL(true);
+        filter.doFilter(request, response, new FilterChain() {
+            public void doFilter(ServletRequest req, ServletResponse res)
+                    throws IOException, ServletException {
+                
+                assertEquals(disabled, req == request);
+            }
+        });
+    }
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies.web;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link PathTrie}.
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+public class PathTrieTest extends TestCase {
+
+    public void testEmpty() throws Exception {
+        PathTrie trie = new PathTrie();
+        assertTrue(trie.isEmpty());
+        assertFalse(trie.matches(""));
+        assertFalse(trie.matches("/index.html"));
+    }
+    
+    public void testMatches() throws Exception {
+        PathTrie trie = new PathTrie();
+        trie.add("/api/*");
+        trie.add("/apidocs");
+        trie.add("/status");
+        trie.add("*.json");
+        assertFalse(trie.isEmpty());
+        
+        assertTrue(trie.matches("/api"));
+        assertTrue(trie.matches("/api/"));
+        assertTrue(trie.matches("/api/accounts/1"));
+        assertTrue(trie.matches("/apidocs"));
+        assertTrue(trie.matches("/status"));
+        assertTrue(trie.matches("/accounts.json"));
+        assertTrue(trie.matches(".json"));
+        
+        assertFalse(trie.matches("/ap"));
+        assertFalse(trie.matches("/apis"));
+        assertFalse(trie.matches("/apidocs/index.html"));
+        assertFalse(trie.matches("/status2"));
+        assertFalse(trie.matches("/stat"));
+        assertFalse(trie.matches("/accounts.jsonp"));
+        assertFalse(trie.matches("json"));
+        assertFalse(trie.matches(""));
+    }
+    
+    public void testInvalidGlob() throws Exception {
+        PathTrie trie = new PathTrie();
+        try {
+            trie.add("/api/*/accounts");
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            trie.add("*.json*");
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2004-2008, Trillian AB. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trillian.goodies.web;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import junit.framework.TestCase;
+
+import org.springframework.mock.web.MockFilterConfig;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockServletContext;
+
+/**
+ * Tests {@link StaticResourceFilter}.
+ *
+ * @author Niklas Therning
+ * @version $Id$
+ */
+public class StaticResourceFilterTest extends TestCase {
+    File root;
+    String css;
+    StaticResourceFilter filter;
+    boolean[] called;
+    FilterChain chain;
+    
+    protected void setUp() throws Exception {
+        root = File.createTempFile("static", "");
+        root.delete();
+        new File(root, "static").mkdirs();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append("body { margin: ").append(i).append("px; }\n");
+        }
+        css = sb.toString();
+        write(new File(root, "static/site.css"), css.getBytes("UTF-8"));
+        write(new File(root, "static/logo.png"), new byte[] {1, 2, 3, 4});
+        
+        MockServletContext servletContext = new MockServletContext() {
+            public String getMimeType(String filePath) {
+                return filePath.endsWith(".css") ? "text/css" : "image/png";
+            }
+        };
+        MockFilterConfig config = new MockFilterConfig(servletContext);
+        config.addInitParameter("paths", "/static/*");
+        config.addInitParameter("root", root.getAbsolutePath());
+        config.addInitParameter("max-age", "3600");
+        filter = new StaticResourceFilter();
+        filter.init(config);
+        
+        called = new boolean[] {false};
+        chain = new FilterChain() {
+            public void doFilter(ServletRequest req, ServletResponse res)
+                    throws IOException, ServletException {
+                called[0] = true;
+            }
+        };
+    }
+    
+    protected void tearDown() throws Exception {
+        new File(root, "static/site.css").delete();
+        new File(root, "static/logo.png").delete();
+        new File(root, "static").delete();
+        root.delete();
+    }
+    
+    private static void write(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+    
+    private MockHttpServletRequest request(String path) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", path);
+        request.setServletPath(path);
+        return request;
+    }
+    
+    public void testOtherPathsPassedOn() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request("/index.jsp"), response, chain);
+        assertTrue(called[0]);
+    }
+    
+    public void testServeFile() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request("/static/logo.png"), response, chain);
+        assertFalse(called[0]);
+        assertEquals(200, response.getStatus());
+        assertEquals("image/png", response.getContentType());
+        assertEquals("max-age=3600", response.getHeader("Cache-Control"));
+        assertNotNull(response.getHeader("ETag"));
+        assertNotNull(response.getHeader("Last-Modified"));
+        assertEquals(4, response.getContentLength());
+        assertTrue(Arrays.equals(new byte[] {1, 2, 3, 4}, response.getContentAsByteArray()));
+    }
+    
+    public void testNotFound() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request("/static/missing.png"), response, chain);
+        assertFalse(called[0]);
+        assertEquals(404, response.getStatus());
+        
+        response = new MockHttpServletResponse();
+        filter.doFilter(request("/static/../static/logo.png"), response, chain);
+        assertEquals(404, response.getStatus());
+    }
+    
+    public void testNotModified() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request("/static/logo.png"), response, chain);
+        String etag = (String) response.getHeader("ETag");
+        
+        MockHttpServletRequest request = request("/static/logo.png");
+        request.addHeader("If-None-Match", etag);
+        response = new MockHttpServletResponse();
+        filter.doFilter(request, response, chain);
+        assertEquals(304, response.getStatus());
+        assertEquals(0, response.getContentAsByteArray().length);
+        
+        request = request("/static/logo.png");
+        request.addHeader("If-None-Match", "\"other\"");
+        response = new MockHttpServletResponse();
+        filter.doFilter(request, response, chain);
+        assertEquals(200, response.getStatus());
+        
+        request = request("/static/logo.png");
+        request.addHeader("If-Modified-Since", new File(root, "static/logo.png").lastModified());
+        response = new MockHttpServletResponse();
+        filter.doFilter(request, response, chain);
+        assertEquals(304, response.getStatus());
+        
+        response = new MockHttpServletResponse();
+        filter.doFilter(request("/static/site.css"), response, chain);
+        request = request("/static/site.css");
+        request.addHeader("If-None-Match", response.getHeader("ETag"));
+        response = new MockHttpServletResponse();
+        filter.doFilter(request, response, chain);
+        assertEquals(304, response.getStatus());
+        assertEquals("Accept-Encoding", response.getHeader("Vary"));
+    }
+    
+    public void testPrivateDirectoriesNotServed() throws Exception {
+        new File(root, "WEB-INF").mkdirs();
+        new File(root, "META-INF").mkdirs();
+        write(new File(root, "WEB-INF/web.xml"), new byte[] {1});
+        write(new File(root, "META-INF/context.xml"), new byte[] {1});
+        try {
+            MockFilterConfig config = new MockFilterConfig(new MockServletContext());
+            config.addInitParameter("paths", "/*");
+            config.addInitParameter("root", root.getAbsolutePath());
+            filter = new StaticResourceFilter();
+            filter.init(config);
+            
+            String[] paths = {"/WEB-INF/web.xml", "/web-inf/web.xml", 
+                    "//WEB-INF/web.xml", "/./WEB-INF/web.xml", "/WEB-INF", 
+                    "/META-INF/context.xml", "/Meta-Inf/context.xml"};
+            for (String path : paths) {
+                MockHttpServletResponse response = new MockHttpServletResponse();
+                filter.doFilter(request(path), response, chain);
+                assertEquals(path, 404, response.getStatus());
+                assertEquals(path, 0, response.getContentAsByteArray().length);
+            }
+            
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            filter.doFilter(request("/static/logo.png"), response, chain);
+            assertEquals(200, response.getStatus());
+        } finally {
+            new File(root, "WEB-INF/web.xml").delete();
+            new File(root, "META-INF/context.xml").delete();
+            new File(root, "WEB-INF").delete();
+            new File(root, "META-INF").delete();
+        }
+    }
+    
+    public void testGzip() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            MockHttpServletRequest request = request("/static/site.css");
+            request.addHeader("Accept-Encoding", "deflate, gzip");
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            filter.doFilter(request, response, chain);
+            assertEquals("gzip", response.getHeader("Content-Encoding"));
+            assertEquals("Accept-Encoding", response.getHeader("Vary"));
+            byte[] data = response.getContentAsByteArray();
+            assertEquals(data.length, response.getContentLength());
+            assertTrue(data.length < css.length());
+            assertEquals(css, new String(readAll(new GZIPInputStream(new ByteArrayInputStream(data))), "UTF-8"));
+        }
+        
+        MockHttpServletRequest request = request("/static/site.css");
+        request.addHeader("Accept-Encoding", "gzip;q=0");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request, response, chain);
+        assertNull(response.getHeader("Content-Encoding"));
+        assertEquals(css, response.getContentAsString());
+    }
+    
+    public void testAccepts() throws Exception {
+        assertTrue(StaticResourceFilter.accepts("gzip, deflate", "gzip"));
+        assertTrue(StaticResourceFilter.accepts("gzip, deflate", "deflate"));
+        assertTrue(StaticResourceFilter.accepts("GZIP;q=0.5", "gzip"));
+        assertFalse(StaticResourceFilter.accepts("gzip;q=0", "gzip"));
+        assertFalse(StaticResourceFilter.accepts("x-gzip", "gzip"));
+        assertFalse(StaticResourceFilter.accepts(null, "gzip"));
+    }
+    
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}